@@ -0,0 +1,302 @@
+package com.loadbalance;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.xnio.XnioExecutor;
+
+import io.undertow.server.Connectors;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.Headers;
+import io.undertow.util.SameThreadExecutor;
+import io.undertow.util.StatusCodes;
+
+/**
+ * Bounds the requests of each type sent to the backends, in the manner of
+ * Undertow's RequestLimit. Requests beyond the limit wait in a bounded queue
+ * of their type and are answered 503 with Retry-After when the predicted wait
+ * exceeds the latency budget of the type, or as soon as their budget runs out
+ * while queued. Types without a configured limit pass straight through.
+ */
+public class AdmissionController implements HttpHandler {
+
+	private static final AttachmentKey<Long> ADMITTED_AT = AttachmentKey.create(Long.class);
+	private static final double SERVICE_WEIGHT = 0.2;
+
+	private final LoadBalancerHandler loadBalancer;
+	private final HttpHandler next;
+	/**
+	 * Indexed by RequestType ordinal, null where the type is not limited
+	 */
+	private final Lane[] lanes = new Lane[RequestType.values().length];
+
+	private static final class SuspendedRequest {
+		final HttpServerExchange exchange;
+		final long deadline;
+		/**
+		 * Rejects the request on its IO thread once its budget runs out
+		 */
+		XnioExecutor.Key timer;
+
+		SuspendedRequest(HttpServerExchange exchange, long deadline) {
+			this.exchange = exchange;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Admission state of one request type
+	 */
+	final class Lane {
+		final RequestType type;
+		private final int concurrencyPerHost;
+		private final int maxQueued;
+		private final long budgetNanos;
+		private final ArrayDeque<SuspendedRequest> queue = new ArrayDeque<SuspendedRequest>();
+		private int running;
+		/**
+		 * Average nanoseconds from admission to completion, 0 until the first
+		 * request completes
+		 */
+		private volatile double serviceNanos;
+		final LongAdder admitted = new LongAdder();
+		final LongAdder rejected = new LongAdder();
+		final LongAdder expired = new LongAdder();
+
+		private final Runnable expiry = new Runnable() {
+			@Override
+			public void run() {
+				List<SuspendedRequest> late;
+				synchronized (Lane.this) {
+					late = expire(System.nanoTime());
+				}
+				rejectAll(late);
+			}
+		};
+
+		private final ExchangeCompletionListener completionListener = new ExchangeCompletionListener() {
+			@Override
+			public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener) {
+				try {
+					Long admittedAt = exchange.removeAttachment(ADMITTED_AT);
+					if (admittedAt != null) {
+						long service = System.nanoTime() - admittedAt;
+						double average = serviceNanos;
+						serviceNanos = average == 0 ? service
+								: average + SERVICE_WEIGHT * (service - average);
+					}
+					requestFinished();
+				} finally {
+					nextListener.proceed();
+				}
+			}
+		};
+
+		Lane(RequestType type, int concurrencyPerHost, int maxQueued, long budgetMillis) {
+			this.type = type;
+			this.concurrencyPerHost = concurrencyPerHost;
+			this.maxQueued = maxQueued;
+			this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+		}
+
+		private int limit() {
+			return Math.max(1, concurrencyPerHost * loadBalancer.getHosts().length);
+		}
+
+		/**
+		 * @return expected nanoseconds until the request at the given queue
+		 *         position is admitted
+		 */
+		private long predictedWait(int position, int limit) {
+			return (long) (position * serviceNanos / limit);
+		}
+
+		void handleRequest(final HttpServerExchange exchange) throws Exception {
+			boolean free = false;
+			synchronized (this) {
+				if (queue.isEmpty() && running < limit()) {
+					running++;
+					free = true;
+				}
+			}
+			if (free) {
+				admit(exchange);
+				next.handleRequest(exchange);
+				return;
+			}
+			// As in RequestLimit the decision is taken again once the
+			// exchange is dispatched, so it may be resumed from another thread
+			exchange.dispatch(SameThreadExecutor.INSTANCE, new Runnable() {
+				@Override
+				public void run() {
+					enqueue(exchange);
+				}
+			});
+		}
+
+		private void enqueue(HttpServerExchange exchange) {
+			long now = System.nanoTime();
+			List<SuspendedRequest> late;
+			boolean resume = false;
+			long wait = 0;
+			boolean reject = false;
+			synchronized (this) {
+				late = expire(now);
+				int limit = limit();
+				if (running < limit) {
+					running++;
+					admit(exchange);
+					resume = true;
+				} else {
+					wait = predictedWait(queue.size() + 1, limit);
+					if (queue.size() >= maxQueued || wait > budgetNanos) {
+						reject = true;
+					} else {
+						SuspendedRequest request = new SuspendedRequest(exchange, now + budgetNanos);
+						// XNIO timers have millisecond resolution, wait one more
+						// so the deadline has passed when it fires
+						request.timer = exchange.getIoThread().executeAfter(expiry,
+								TimeUnit.NANOSECONDS.toMillis(budgetNanos) + 1, TimeUnit.MILLISECONDS);
+						queue.add(request);
+					}
+				}
+			}
+			rejectAll(late);
+			if (resume) {
+				Connectors.executeRootHandler(next, exchange);
+			} else if (reject) {
+				rejected.increment();
+				Connectors.executeRootHandler(rejection(wait), exchange);
+			}
+		}
+
+		private void requestFinished() {
+			long now = System.nanoTime();
+			List<SuspendedRequest> late;
+			SuspendedRequest resumed;
+			synchronized (this) {
+				running--;
+				late = expire(now);
+				resumed = queue.poll();
+				if (resumed != null) {
+					running++;
+					admit(resumed.exchange);
+				}
+			}
+			rejectAll(late);
+			if (resumed != null) {
+				resumed.timer.remove();
+				resume(resumed.exchange, next);
+			}
+		}
+
+		private void admit(HttpServerExchange exchange) {
+			admitted.increment();
+			exchange.putAttachment(ADMITTED_AT, System.nanoTime());
+			exchange.addExchangeCompleteListener(completionListener);
+		}
+
+		/**
+		 * Removes the queued requests whose budget has run out. All requests of
+		 * a lane share one budget so they expire in queue order. Call with the
+		 * lock held.
+		 */
+		private List<SuspendedRequest> expire(long now) {
+			List<SuspendedRequest> late = null;
+			while (!queue.isEmpty() && queue.peek().deadline - now < 0) {
+				if (late == null) {
+					late = new ArrayList<SuspendedRequest>();
+				}
+				late.add(queue.poll());
+			}
+			return late;
+		}
+
+		private void rejectAll(List<SuspendedRequest> late) {
+			if (late == null) {
+				return;
+			}
+			for (SuspendedRequest request : late) {
+				// Expired by an earlier timer or another request, drop its own timer
+				request.timer.remove();
+				expired.increment();
+				resume(request.exchange, rejection(budgetNanos));
+			}
+		}
+
+		public synchronized int getRunning() {
+			return running;
+		}
+
+		public synchronized int getQueued() {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * @param limits
+	 *            per request type, types not in the map are not limited
+	 */
+	public AdmissionController(LoadBalancerHandler loadBalancer, HttpHandler next,
+			Map<String, AutoScaleConfig.AdmissionLimit> limits) {
+		this.loadBalancer = loadBalancer;
+		this.next = next;
+		for (Map.Entry<String, AutoScaleConfig.AdmissionLimit> entry : limits.entrySet()) {
+			RequestType type = RequestType.fromString(entry.getKey());
+			if (type == null) {
+				throw new IllegalArgumentException("Unknown request type " + entry.getKey());
+			}
+			AutoScaleConfig.AdmissionLimit limit = entry.getValue();
+			lanes[type.ordinal()] = new Lane(type, limit.concurrency, limit.queue, limit.budget);
+		}
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		RequestType type = RequestType.fromString(LoadBalancerHandler.getQueryParameter(exchange, "type"));
+		Lane lane = type == null ? null : lanes[type.ordinal()];
+		if (lane == null) {
+			next.handleRequest(exchange);
+			return;
+		}
+		lane.handleRequest(exchange);
+	}
+
+	/**
+	 * @return the lane of the type, null if the type is not limited
+	 */
+	Lane getLane(RequestType type) {
+		return lanes[type.ordinal()];
+	}
+
+	/**
+	 * Runs the handler for a suspended exchange on its own IO thread
+	 */
+	private static void resume(final HttpServerExchange exchange, final HttpHandler handler) {
+		exchange.getIoThread().execute(new Runnable() {
+			@Override
+			public void run() {
+				Connectors.executeRootHandler(handler, exchange);
+			}
+		});
+	}
+
+	private static HttpHandler rejection(long waitNanos) {
+		final long retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999999999L));
+		return new HttpHandler() {
+			@Override
+			public void handleRequest(HttpServerExchange exchange) throws Exception {
+				exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+				exchange.getResponseHeaders().put(Headers.RETRY_AFTER, retryAfter);
+				exchange.endExchange();
+			}
+		};
+	}
+}
@@ -0,0 +1,86 @@
+package com.loadbalance;
+
+import com.loadbalance.LoadBalancerHandler.Host;
+import com.loadbalance.LoadBalancerHandler.HostSelector;
+
+/**
+ * Sends requests with the same type and argument to the same host, so the
+ * image or result it cached is there the next time. Hosts are ranked per key
+ * by rendezvous hashing of the key with the host URI: adding or removing a
+ * host only moves the keys that rank it first. A key goes to the best ranked
+ * host whose in flight requests stay within loadFactor times the average, so
+ * a hot key spills over to its next host instead of piling up on one.
+ * Requests without an argument go to the less loaded of two random hosts.
+ */
+class AffinityHostSelector implements HostSelector {
+
+	private final double loadFactor;
+	private final LeastOutstandingHostSelector fallback = new LeastOutstandingHostSelector();
+
+	/**
+	 * @param loadFactor
+	 *            in flight requests a host may take above the average, 1.25
+	 *            allows 25% more
+	 */
+	public AffinityHostSelector(double loadFactor) {
+		this.loadFactor = loadFactor;
+	}
+
+	public int selectHost(Host[] availableHosts) {
+		return fallback.selectHost(availableHosts);
+	}
+
+	public int selectHost(Host[] availableHosts, String requestType) {
+		return fallback.selectHost(availableHosts, requestType);
+	}
+
+	@Override
+	public int selectHost(Host[] availableHosts, String requestType, String argument) {
+		if (argument == null || availableHosts.length == 1) {
+			return fallback.selectHost(availableHosts, requestType);
+		}
+		long key = mix(argument.hashCode() * 31L + (requestType == null ? 0 : requestType.hashCode()));
+		long total = 0;
+		int usable = 0;
+		for (Host host : availableHosts) {
+			if (!host.draining && !host.ejected) {
+				total += host.getInFlight();
+				usable++;
+			}
+		}
+		// Counting this request, so an idle cluster admits it anywhere
+		double bound = Math.ceil(loadFactor * (total + 1) / Math.max(usable, 1));
+		int best = -1;
+		long bestScore = 0;
+		int first = 0;
+		long firstScore = Long.MIN_VALUE;
+		for (int i = 0; i < availableHosts.length; i++) {
+			Host host = availableHosts[i];
+			if (host.draining || host.ejected) {
+				continue;
+			}
+			long score = mix(key ^ host.uri.hashCode());
+			if (score > firstScore) {
+				firstScore = score;
+				first = i;
+			}
+			if (host.getInFlight() + 1 <= bound && (best < 0 || score > bestScore)) {
+				bestScore = score;
+				best = i;
+			}
+		}
+		return best >= 0 ? best : first;
+	}
+
+	/**
+	 * Finalizer of MurmurHash3, spreads every input bit over the result
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -2,12 +2,11 @@ package com.loadbalance;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.amazonaws.AmazonClientException;
@@ -18,31 +17,161 @@ import com.amazonaws.regions.Regions;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
 
 public class AutoScaleConfig implements InstanceLaunchedCallback {
+	static final String PROVIDER_EC2 = "ec2";
+	static final String PROVIDER_SIMULATED = "simulated";
+	/**
+	 * Seconds between polls of pending and terminating instances
+	 */
+	private static final long INSTANCE_POLL_INTERVAL = 5;
+	/**
+	 * Slots of a launch config without slots whose instance type has no
+	 * instanceCores entry
+	 */
+	static final int DEFAULT_SLOTS = 2;
+
 	public List<LaunchConfig> launchConfig;
+	/**
+	 * Host selection strategy: aws (default), roundrobin, random,
+	 * leastoutstanding, costaware, pool or affinity
+	 */
+	public String hostSelector;
+	/**
+	 * In flight requests the affinity selector lets a host take relative to
+	 * the average before a key spills over to its next host
+	 */
+	public double affinityLoadFactor = 1.25;
+	/**
+	 * Request type to instance types, in order of preference, for the pool
+	 * selector
+	 */
+	public Map<String, List<String>> routing;
+	/**
+	 * How the pool selector picks a host within a pool: roundrobin or
+	 * leastoutstanding
+	 */
+	public String poolPolicy;
+	/**
+	 * In flight requests at which the pool selector spills over to the next
+	 * pool
+	 */
+	public int poolSaturation = 30;
+	/**
+	 * Seconds between active health checks, 0 disables them
+	 */
+	public int healthCheckInterval = 5;
+	public int healthCheckTimeout = 2000;
+	/**
+	 * Consecutive failed health checks after which a host is ejected
+	 */
+	public int healthCheckFailures = 3;
+	/**
+	 * Seconds over which a new or re-admitted host ramps up to full traffic
+	 */
+	public int slowStart = 30;
+	/**
+	 * Milliseconds to wait for /cpu answers in a local scaling round
+	 */
+	public int cpuSampleTimeout = 2000;
+	/**
+	 * Port of the admin listener serving load balancer statistics
+	 */
+	public int adminPort = 8081;
+	/**
+	 * Seconds ahead the predictive scaler forecasts, roughly the time for a
+	 * launched instance to boot and warm up
+	 */
+	public int predictionHorizon = 120;
+	/**
+	 * Seconds a removed host gets to finish its requests before its
+	 * connections are closed and the instance is terminated
+	 */
+	public int drainTimeout = 120;
+	/**
+	 * Seconds a running instance gets to answer /health before it is
+	 * terminated as failed
+	 */
+	public int warmingTimeout = 300;
+	/**
+	 * Request type to admission limit, types not listed are not limited and
+	 * no limits disables admission control
+	 */
+	public Map<String, AdmissionLimit> admission;
+	/**
+	 * Request type to results the load balancer keeps to answer repeated
+	 * requests itself, types not listed always go to a worker
+	 */
+	public Map<String, Integer> responseCache;
+	/**
+	 * Where instances are launched: ec2 (default) or simulated, which runs
+	 * them inside this JVM
+	 */
+	public String provider;
+	/**
+	 * Seconds a simulated instance takes to boot
+	 */
+	public int bootLatency = 20;
+	/**
+	 * Instance type to jobs an instance of that type runs at once. Limits
+	 * simulated instances and sizes the predictive scaler's slots.
+	 */
+	public Map<String, Integer> instanceCores;
 
 	transient LoadBalancerHandler handler;
-	transient LaunchInstanceHelper instanceHelper;
-	transient ExecutorService executorService;
+	transient CloudProvider cloudProvider;
+	transient InstanceLifecycle lifecycle;
 	transient AmazonCloudWatchClient cloudWatchClient;
+	transient CpuSampler cpuSampler;
+	transient ScalingController scalingController;
+	transient AdmissionController admissionController;
+	transient ResponseCacheHandler responseCacheHandler;
 
-	private final String SCALING_LOCAL = "local";
-	private final String SCALING_CLOUDWATCH = "aws_cloudwatch";
-
-	public AutoScaleConfig() throws Exception {
+	public AutoScaleConfig() {
 		launchConfig = new ArrayList<LaunchConfig>();
-		executorService = Executors.newFixedThreadPool(10);
-		AWSCredentials credentials = null;
+	}
+
+	static AWSCredentials loadCredentials() {
 		try {
-			credentials = new ProfilesConfigFile("/home/ubuntu/.aws/credentials").getCredentials("default");
+			return new ProfilesConfigFile("/home/ubuntu/.aws/credentials").getCredentials("default");
 		} catch (Exception e) {
 			throw new AmazonClientException("Cannot load the credentials from the credential profiles file. "
 					+ "Please make sure that your credentials file is at the correct "
 					+ "location default, and is in valid format.", e);
 		}
-		cloudWatchClient = new AmazonCloudWatchClient(credentials);
-		Region usEast = Region.getRegion(Regions.US_EAST_1);
-		cloudWatchClient.setRegion(usEast);
-		LoadBalancer.logger.info("Cloudwatch Client setup");
+	}
+
+	boolean isSimulated() {
+		return PROVIDER_SIMULATED.equals(provider);
+	}
+
+	/**
+	 * @return false if scaling only adds and removes the hosts listed in the
+	 *         server pool
+	 */
+	boolean launchesInstances(LaunchConfig config) {
+		return ScalingController.SCALING_CLOUDWATCH.equals(config.scaling) || isSimulated();
+	}
+
+	private CloudProvider createCloudProvider() throws Exception {
+		if (isSimulated()) {
+			return new SimulatedCloudProvider(bootLatency, instanceCores,
+					new URL("http://127.0.0.1:" + adminPort + "/telemetry"));
+		}
+		if (provider != null && !PROVIDER_EC2.equals(provider)) {
+			throw new IllegalArgumentException("Unknown provider " + provider);
+		}
+		return new Ec2CloudProvider(loadCredentials());
+	}
+
+	private AmazonCloudWatchClient createCloudWatchClient() {
+		for (LaunchConfig config : launchConfig) {
+			if (ScalingController.SCALING_CLOUDWATCH.equals(config.scaling)) {
+				AmazonCloudWatchClient client = new AmazonCloudWatchClient(loadCredentials());
+				client.setRegion(Region.getRegion(Regions.US_EAST_1));
+				LoadBalancer.logger.info("Cloudwatch Client setup");
+				return client;
+			}
+		}
+		return null;
 	}
 
 	public static URI getURI(String url) throws URISyntaxException {
@@ -62,7 +191,10 @@ public class AutoScaleConfig implements InstanceLaunchedCallback {
 			}
 			handler.addHost(getURI(dnsName), null, config.ami, config.instanceType, instanceId);
 			config.current++;
-			config.scalingOperation.set(false);
+			if (config.current >= config.desired) {
+				config.warmupUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.warmup);
+				config.scalingOperation.set(false);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -77,47 +209,28 @@ public class AutoScaleConfig implements InstanceLaunchedCallback {
 		}
 		handler.removeHost(null, instanceId);
 		config.current--;
-		config.scalingOperation.set(false);
-	}
-
-	public void setupScaleUpPolicy(List<Policy_Up> policies, String operator, String scaling, LaunchConfig config,
-			int launchConfigId) {
-		for (int i = 0; i < policies.size(); i++) {
-			Policy_Up policy = policies.get(i);
-			TimerTask task;
-			if (scaling.contentEquals(SCALING_CLOUDWATCH)) {
-				task = new PeriodicCloudwatchTask(policy, null, cloudWatchClient, config, instanceHelper,
-						launchConfigId, this);
-			} else {
-				task = new PeriodicLocalCpuUsageTask(policy, null, config, handler);
-			}
-			Timer timer = new Timer();
-			long period = (Long.parseLong(policy.period)) * 1000;
-			timer.schedule(task, 0, period);
-
+		if (config.current <= config.desired) {
+			config.scalingOperation.set(false);
 		}
 	}
 
-	public void setupScaleDownPolicy(List<Policy_Down> policies, String operator, String scaling, LaunchConfig config,
-			int launchConfigId) {
-		for (int i = 0; i < policies.size(); i++) {
-			Policy_Down policy = policies.get(i);
-			TimerTask task;
-			if (scaling.contentEquals(SCALING_CLOUDWATCH)) {
-				task = new PeriodicCloudwatchTask(null, policy, cloudWatchClient, config, instanceHelper,
-						launchConfigId, this);
-			} else {
-				task = new PeriodicLocalCpuUsageTask(null, policy, config, handler);
-			}
-			Timer timer = new Timer();
-			long period = (Long.parseLong(policy.period)) * 1000;
-			timer.schedule(task, 0, period);
-		}
+	@Override
+	public void instanceFailed(int launchConfigId, String instanceId) {
+		LaunchConfig config = launchConfig.get(launchConfigId);
+		LoadBalancer.logger.warn("Instance " + instanceId + " of " + config.instanceType + " failed, giving up on it");
+		// Let the next tick decide whether to launch again
+		config.desired--;
+		config.scalingOperation.set(false);
 	}
 
-	public void setupConfig(LoadBalancerHandler handler) throws Exception {
-		instanceHelper = new LaunchInstanceHelper();
+	public void setupConfig(LoadBalancerHandler handler, BackendProbe probe) throws Exception {
+		cloudProvider = createCloudProvider();
+		lifecycle = new InstanceLifecycle(cloudProvider, probe, INSTANCE_POLL_INTERVAL, healthCheckTimeout,
+				warmingTimeout);
+		lifecycle.start();
+		cloudWatchClient = createCloudWatchClient();
 		this.handler = handler;
+		cpuSampler = new CpuSampler(probe, cpuSampleTimeout);
 		for (int i = launchConfig.size() - 1; i >= 0; i--) {
 			LaunchConfig config = launchConfig.get(i);
 			if (config.server_pool != null) {
@@ -129,26 +242,38 @@ public class AutoScaleConfig implements InstanceLaunchedCallback {
 				}
 				int hostToLaunc = config.min - hostAddCount;
 				for (int j = 0; j < hostToLaunc; j++) {
-					instanceHelper.launchOnDemand(config.instanceType, config.ami, i, this);
+					lifecycle.launchOnDemand(config.instanceType, config.ami, i, this);
+				}
+				if (config.scale && launchesInstances(config)) {
+					for (int j = 0; j < config.warmPool; j++) {
+						lifecycle.launchStandby(config.instanceType, config.ami, i, this);
+					}
 				}
 				config.current = hostAddCount;
 				config.desired = config.min;
 				LoadBalancer.logger.info("Configured " + config.current + " hosts of type " + config.instanceType);
 			}
-			if (config.scale) {
-				if (config.scalingUpPolicy != null && config.scalingUpPolicy.policies != null) {
-					setupScaleUpPolicy(config.scalingUpPolicy.policies, config.scalingUpPolicy.operator, config.scaling,
-							config, i);
-				}
-				if (config.scalingDownPolicy != null && config.scalingDownPolicy.policies != null) {
-					setupScaleDownPolicy(config.scalingDownPolicy.policies, config.scalingUpPolicy.operator,
-							config.scaling, config, i);
-				}
-			}
 		}
+		scalingController = new ScalingController(this, handler, lifecycle,
+				new CloudwatchMetricsSource(cloudWatchClient), new LocalCpuMetricsSource(cpuSampler),
+				new TelemetryMetricsSource(handler));
+		scalingController.start();
 	}
 
-	class LaunchConfig {
+	/**
+	 * @return requests an instance of the launch config serves at once: its
+	 *         slots if set, else the cores of its instance type, else
+	 *         DEFAULT_SLOTS
+	 */
+	int slots(LaunchConfig config) {
+		if (config.slots > 0) {
+			return config.slots;
+		}
+		Integer cores = instanceCores == null ? null : instanceCores.get(config.instanceType);
+		return cores != null && cores > 0 ? cores : DEFAULT_SLOTS;
+	}
+
+	static class LaunchConfig {
 		public transient AtomicBoolean scalingOperation = new AtomicBoolean(false);
 		public String ami;
 		public String instanceType;
@@ -165,12 +290,48 @@ public class AutoScaleConfig implements InstanceLaunchedCallback {
 		}
 
 		public boolean scale;
+		/**
+		 * Booted, healthy instances kept outside the load balancer and promoted
+		 * on scale out
+		 */
+		public int warmPool;
+		/**
+		 * Scale out ahead of forecast load in addition to the policies
+		 */
+		public boolean predictive;
+		/**
+		 * Requests an instance serves concurrently at full utilization, 0
+		 * takes instanceCores of the instance type
+		 */
+		public int slots;
+		public double targetUtilization = 0.7;
+		/**
+		 * Warmup in seconds of the last scale out and System.nanoTime() until
+		 * which policies are not evaluated
+		 */
+		transient int warmup;
+		transient long warmupUntil;
 		public ScalingUpPolicy scalingUpPolicy;
 		public ScalingDownPolicy scalingDownPolicy;
 
 	}
 
-	class Policy_Up {
+	static class AdmissionLimit {
+		/**
+		 * Requests of the type in flight per host
+		 */
+		public int concurrency = 4;
+		/**
+		 * Requests of the type waiting for admission
+		 */
+		public int queue = 100;
+		/**
+		 * Milliseconds a request of the type may wait for admission
+		 */
+		public long budget = 1000;
+	}
+
+	static class Policy_Up {
 
 		public String metric;
 		public String statistic;
@@ -182,7 +343,7 @@ public class AutoScaleConfig implements InstanceLaunchedCallback {
 
 	}
 
-	class Policy_Down {
+	static class Policy_Down {
 
 		public String metric;
 		public String statistic;
@@ -192,12 +353,12 @@ public class AutoScaleConfig implements InstanceLaunchedCallback {
 
 	}
 
-	class ScalingDownPolicy {
+	static class ScalingDownPolicy {
 		public String operator;
 		public List<Policy_Down> policies = new ArrayList<Policy_Down>();
 	}
 
-	class ScalingUpPolicy {
+	static class ScalingUpPolicy {
 
 		public String operator;
 		public List<Policy_Up> policies = new ArrayList<Policy_Up>();
@@ -0,0 +1,131 @@
+package com.loadbalance;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.Xnio;
+import org.xnio.XnioIoThread;
+import org.xnio.XnioWorker;
+
+import io.undertow.client.ClientCallback;
+import io.undertow.client.ClientConnection;
+import io.undertow.client.ClientExchange;
+import io.undertow.client.ClientRequest;
+import io.undertow.client.UndertowClient;
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.server.DefaultByteBufferPool;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import io.undertow.util.StringReadChannelListener;
+
+import static org.xnio.IoUtils.safeClose;
+
+/**
+ * Issues small non-blocking GET requests to the backends, e.g. /health or
+ * /cpu. Probes run on a dedicated XNIO worker so they never wait behind proxy
+ * traffic and never hold a thread while waiting.
+ */
+public class BackendProbe {
+
+	public interface ProbeCallback {
+		void completed(int statusCode, String body);
+
+		void failed(IOException e);
+	}
+
+	private final UndertowClient client;
+	private final XnioWorker worker;
+	private final ByteBufferPool bufferPool;
+
+	public BackendProbe() throws IOException {
+		client = UndertowClient.getInstance();
+		worker = Xnio.getInstance().createWorker(OptionMap.builder().set(Options.WORKER_IO_THREADS, 1)
+				.set(Options.WORKER_TASK_CORE_THREADS, 1).set(Options.WORKER_TASK_MAX_THREADS, 1)
+				.set(Options.TCP_NODELAY, true).getMap());
+		bufferPool = new DefaultByteBufferPool(false, 1024);
+	}
+
+	/**
+	 * Sends GET path to the host. Exactly one of the callback methods is
+	 * called, on an IO thread, at the latest after timeoutMillis.
+	 */
+	public void get(final URI host, final String path, long timeoutMillis, final ProbeCallback callback) {
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicReference<ClientConnection> connectionRef = new AtomicReference<ClientConnection>();
+		XnioIoThread ioThread = worker.getIoThread();
+		ioThread.executeAfter(new Runnable() {
+			@Override
+			public void run() {
+				if (done.compareAndSet(false, true)) {
+					safeClose(connectionRef.get());
+					callback.failed(new IOException("Probe of " + host + path + " timed out"));
+				}
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+
+		client.connect(new ClientCallback<ClientConnection>() {
+			@Override
+			public void completed(final ClientConnection connection) {
+				connectionRef.set(connection);
+				if (done.get()) {
+					safeClose(connection);
+					return;
+				}
+				ClientRequest request = new ClientRequest().setMethod(Methods.GET).setPath(path);
+				request.getRequestHeaders().put(Headers.HOST, host.getHost());
+				connection.sendRequest(request, new ClientCallback<ClientExchange>() {
+					@Override
+					public void completed(ClientExchange exchange) {
+						exchange.setResponseListener(new ClientCallback<ClientExchange>() {
+							@Override
+							public void completed(final ClientExchange result) {
+								final int statusCode = result.getResponse().getResponseCode();
+								new StringReadChannelListener(bufferPool) {
+									@Override
+									protected void stringDone(String body) {
+										safeClose(connection);
+										if (done.compareAndSet(false, true)) {
+											callback.completed(statusCode, body);
+										}
+									}
+
+									@Override
+									protected void error(IOException e) {
+										fail(connection, e);
+									}
+								}.setup(result.getResponseChannel());
+							}
+
+							@Override
+							public void failed(IOException e) {
+								fail(connection, e);
+							}
+						});
+					}
+
+					@Override
+					public void failed(IOException e) {
+						fail(connection, e);
+					}
+				});
+			}
+
+			@Override
+			public void failed(IOException e) {
+				fail(null, e);
+			}
+
+			private void fail(ClientConnection connection, IOException e) {
+				safeClose(connection);
+				if (done.compareAndSet(false, true)) {
+					callback.failed(e);
+				}
+			}
+		}, host, ioThread, bufferPool, OptionMap.EMPTY);
+	}
+}
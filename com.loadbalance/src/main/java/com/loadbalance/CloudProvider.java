@@ -0,0 +1,50 @@
+package com.loadbalance;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Launches and terminates the instances of the autoscaler. Calls only issue
+ * the request, InstanceLifecycle polls describeInstances to follow the
+ * instances through their states.
+ */
+public interface CloudProvider {
+
+	/**
+	 * Instance states, using the EC2 state codes
+	 */
+	int STATE_PENDING = 0;
+	int STATE_RUNNING = 16;
+	int STATE_SHUTTING_DOWN = 32;
+	int STATE_TERMINATED = 48;
+
+	class InstanceStatus {
+		/**
+		 * One of the STATE_ codes
+		 */
+		final int state;
+		/**
+		 * Host name or URL the worker listens on, null until running
+		 */
+		final String address;
+
+		InstanceStatus(int state, String address) {
+			this.state = state;
+			this.address = address;
+		}
+	}
+
+	/**
+	 * @return id of the pending instance
+	 */
+	String launchInstance(String instanceType, String amiID);
+
+	void terminateInstances(List<String> instanceIds);
+
+	/**
+	 * Looks up all given instances in one request. Instances the provider does
+	 * not know are left out of the result.
+	 */
+	Map<String, InstanceStatus> describeInstances(Collection<String> instanceIds);
+}
@@ -0,0 +1,129 @@
+package com.loadbalance;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatch.model.Datapoint;
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsRequest;
+import com.amazonaws.services.cloudwatch.model.GetMetricStatisticsResult;
+import com.loadbalance.AutoScaleConfig.LaunchConfig;
+
+/**
+ * Fetches the metric of all instances of a launch config in one batch. The
+ * SDK we use has no GetMetricData, so the per instance requests of a batch
+ * share one time window and are issued in parallel.
+ */
+public class CloudwatchMetricsSource implements MetricsSource {
+	private static final int REQUEST_THREADS = 8;
+	/**
+	 * Seconds to wait for all requests of a batch
+	 */
+	private static final long REQUEST_TIMEOUT = 10;
+
+	AmazonCloudWatchClient cloudWatchClient;
+	ExecutorService requestExecutor;
+
+	public CloudwatchMetricsSource(AmazonCloudWatchClient cloudWatchClient) {
+		this.cloudWatchClient = cloudWatchClient;
+		requestExecutor = Executors.newFixedThreadPool(REQUEST_THREADS);
+	}
+
+	@Override
+	public double average(LaunchConfig config, String metric, String statistic, int period) {
+		long end = System.currentTimeMillis();
+		Date endTime = new Date(end);
+		Date startTime = new Date(end - period * 2 * 1000L);
+
+		List<String> instances;
+		synchronized (config.server_pool) {
+			instances = new ArrayList<String>(
+					config.server_pool.subList(0, Math.min(config.current, config.server_pool.size())));
+		}
+		List<Future<GetMetricStatisticsResult>> results = new ArrayList<Future<GetMetricStatisticsResult>>();
+		for (String instance : instances) {
+			final GetMetricStatisticsRequest cloudWatchRequest = new GetMetricStatisticsRequest()
+					.withStartTime(startTime).withEndTime(endTime).withNamespace("AWS/EC2").withPeriod(period)
+					.withDimensions(new Dimension().withName("InstanceId").withValue(instance))
+					.withMetricName(metric).withStatistics(statistic);
+			results.add(requestExecutor.submit(new Callable<GetMetricStatisticsResult>() {
+				@Override
+				public GetMetricStatisticsResult call() {
+					return cloudWatchClient.getMetricStatistics(cloudWatchRequest);
+				}
+			}));
+		}
+
+		double totalCpu = 0;
+		int found = 0;
+		// One deadline for the whole batch, the scaling scheduler thread waits
+		// on it
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(REQUEST_TIMEOUT);
+		for (int j = 0; j < results.size(); j++) {
+			List<Datapoint> datapoints;
+			try {
+				datapoints = results.get(j).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+						.getDatapoints();
+			} catch (TimeoutException e) {
+				results.get(j).cancel(true);
+				LoadBalancer.logger.warn("Cloudwatch request for " + instances.get(j) + " timed out");
+				continue;
+			} catch (Exception e) {
+				LoadBalancer.logger.warn("Cloudwatch request for " + instances.get(j) + " failed " + e.getMessage());
+				continue;
+			}
+			Datapoint newest = null;
+			for (Datapoint datapoint : datapoints) {
+				// Datapoints come back in no particular order
+				if (newest == null || datapoint.getTimestamp().after(newest.getTimestamp())) {
+					newest = datapoint;
+				}
+			}
+			Double cpu = newest == null ? null : statistic(newest, statistic);
+			if (cpu != null) {
+				totalCpu += cpu;
+				found++;
+				LoadBalancer.logger.info(j + " CPU " + cpu);
+			} else {
+				LoadBalancer.logger.warn("No data found from cloudwatch for given period");
+			}
+		}
+		if (found == 0) {
+			return Double.NaN;
+		}
+		totalCpu = totalCpu / found;
+		LoadBalancer.logger.info("AVG CPU " + totalCpu);
+		return totalCpu;
+	}
+
+	/**
+	 * @return the value of the requested statistic, null if the datapoint
+	 *         does not carry it
+	 */
+	private static Double statistic(Datapoint datapoint, String statistic) {
+		if (statistic == null) {
+			return datapoint.getAverage();
+		}
+		switch (statistic) {
+		case "Maximum":
+			return datapoint.getMaximum();
+		case "Minimum":
+			return datapoint.getMinimum();
+		case "Sum":
+			return datapoint.getSum();
+		case "SampleCount":
+			return datapoint.getSampleCount();
+		default:
+			return datapoint.getAverage();
+		}
+	}
+
+}
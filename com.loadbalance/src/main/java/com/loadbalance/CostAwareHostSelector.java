@@ -0,0 +1,81 @@
+package com.loadbalance;
+
+import com.loadbalance.LoadBalancerHandler.Host;
+import com.loadbalance.LoadBalancerHandler.HostSelector;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.AttachmentKey;
+
+/**
+ * Routes each request to the host with the earliest expected completion,
+ * i.e. the least estimated outstanding work once this request is added. Costs
+ * come from RequestCostModel and are calibrated from completed requests.
+ */
+class CostAwareHostSelector implements HostSelector {
+
+	private static final AttachmentKey<Estimate> ESTIMATE = AttachmentKey.create(Estimate.class);
+
+	private final RequestCostModel costModel;
+
+	public CostAwareHostSelector() {
+		costModel = new RequestCostModel();
+	}
+
+	public int selectHost(Host[] availableHosts) {
+		return selectHost(availableHosts, null, null);
+	}
+
+	public int selectHost(Host[] availableHosts, String requestType) {
+		return selectHost(availableHosts, requestType, null);
+	}
+
+	@Override
+	public int selectHost(Host[] availableHosts, String requestType, String argument) {
+		RequestType type = RequestType.fromString(requestType);
+		double work = type == null ? 1 : type.work(argument);
+		int best = 0;
+		long bestCompletion = Long.MAX_VALUE;
+		for (int i = 0; i < availableHosts.length; i++) {
+			Host host = availableHosts[i];
+			long completion = host.getOutstandingWork() + costModel.estimate(host.type, type, work);
+			if (completion < bestCompletion) {
+				bestCompletion = completion;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public void requestStarted(Host host, HttpServerExchange exchange) {
+		RequestType type = RequestType.fromString(LoadBalancerHandler.getQueryParameter(exchange, "type"));
+		double work = type == null ? 1 : type.work(LoadBalancerHandler.getQueryParameter(exchange, "arg"));
+		Estimate estimate = new Estimate(type, work, costModel.estimate(host.type, type, work));
+		exchange.putAttachment(ESTIMATE, estimate);
+		host.outstandingWork.add(estimate.cost);
+	}
+
+	@Override
+	public void requestFinished(Host host, HttpServerExchange exchange, long latencyNanos) {
+		Estimate estimate = exchange.removeAttachment(ESTIMATE);
+		if (estimate == null) {
+			return;
+		}
+		host.outstandingWork.add(-estimate.cost);
+		if (latencyNanos >= 0) {
+			costModel.record(host.type, estimate.type, estimate.work, latencyNanos);
+		}
+	}
+
+	private static final class Estimate {
+		final RequestType type;
+		final double work;
+		final long cost;
+
+		Estimate(RequestType type, double work, long cost) {
+			this.type = type;
+			this.work = work;
+			this.cost = cost;
+		}
+	}
+}
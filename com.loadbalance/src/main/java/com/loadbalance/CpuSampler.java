@@ -0,0 +1,147 @@
+package com.loadbalance;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects /cpu from a set of servers concurrently. All probes are sent at
+ * once and whatever arrived by the deadline is returned, so a sampling round
+ * takes bounded time regardless of the number of servers or a slow one. A
+ * server refusing connections is taken as saturated, as the blocking sampler
+ * did, so it still drives a scale out.
+ */
+public class CpuSampler {
+
+	private static final String CPU_PATH = "/cpu";
+	/**
+	 * Cpu percentage counted for a server that refuses connections
+	 */
+	static final double REFUSED_CPU = 100;
+
+	private final BackendProbe probe;
+	private final long timeoutMillis;
+
+	public CpuSampler(BackendProbe probe, long timeoutMillis) {
+		this.probe = probe;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * @param servers
+	 *            host names as listed in the server pool
+	 */
+	public Samples sample(List<String> servers) {
+		final Map<String, Double> values = new ConcurrentHashMap<String, Double>();
+		final List<String> refused = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch latch = new CountDownLatch(servers.size());
+		for (final String server : servers) {
+			URI uri;
+			try {
+				uri = AutoScaleConfig.getURI(server);
+			} catch (URISyntaxException e) {
+				LoadBalancer.logger.error("Invalid server " + server);
+				latch.countDown();
+				continue;
+			}
+			probe.get(uri, CPU_PATH, timeoutMillis, new BackendProbe.ProbeCallback() {
+				@Override
+				public void completed(int statusCode, String body) {
+					if (statusCode == 200) {
+						try {
+							double cpu = Double.parseDouble(body.trim());
+							if (!Double.isNaN(cpu)) {
+								values.put(server, cpu);
+							}
+						} catch (NumberFormatException e) {
+							LoadBalancer.logger.warn("Bad cpu value from " + server + ": " + body);
+						}
+					}
+					latch.countDown();
+				}
+
+				@Override
+				public void failed(IOException e) {
+					if (e instanceof ConnectException) {
+						refused.add(server);
+					}
+					latch.countDown();
+				}
+			});
+		}
+		try {
+			// Probes time out on their own, this only bounds the wait
+			latch.await(timeoutMillis + 100, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		List<String> missing = new ArrayList<String>();
+		List<String> refusedServers;
+		synchronized (refused) {
+			refusedServers = new ArrayList<String>(refused);
+		}
+		for (String server : servers) {
+			if (!values.containsKey(server) && !refusedServers.contains(server)) {
+				missing.add(server);
+			}
+		}
+		return new Samples(values, refusedServers, missing);
+	}
+
+	public static class Samples {
+		private final Map<String, Double> values;
+		private final List<String> refused;
+		private final List<String> missing;
+
+		Samples(Map<String, Double> values, List<String> refused, List<String> missing) {
+			this.values = Collections.unmodifiableMap(values);
+			this.refused = Collections.unmodifiableList(refused);
+			this.missing = Collections.unmodifiableList(missing);
+		}
+
+		/**
+		 * @return cpu percentage by server for the servers that answered
+		 */
+		public Map<String, Double> getValues() {
+			return values;
+		}
+
+		/**
+		 * @return servers that refused the connection
+		 */
+		public List<String> getRefused() {
+			return refused;
+		}
+
+		/**
+		 * @return servers that failed otherwise or did not answer in time
+		 */
+		public List<String> getMissing() {
+			return missing;
+		}
+
+		/**
+		 * @return average over the servers that answered, counting refusing
+		 *         servers as REFUSED_CPU, NaN if none did either
+		 */
+		public double average() {
+			int count = values.size() + refused.size();
+			if (count == 0) {
+				return Double.NaN;
+			}
+			double total = refused.size() * REFUSED_CPU;
+			for (double value : values.values()) {
+				total += value;
+			}
+			return total / count;
+		}
+	}
+}
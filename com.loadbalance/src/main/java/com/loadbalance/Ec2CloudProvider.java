@@ -0,0 +1,183 @@
+package com.loadbalance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.AuthorizeSecurityGroupIngressRequest;
+import com.amazonaws.services.ec2.model.CreateSecurityGroupRequest;
+import com.amazonaws.services.ec2.model.CreateSecurityGroupResult;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.IpPermission;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+/**
+ * Runs the workers on EC2 on demand instances.
+ */
+public class Ec2CloudProvider implements CloudProvider {
+	private AmazonEC2 ec2;
+	private ArrayList<Tag> tags;
+
+	private final String SECURITY_GROUP = "AWS_ELASTIC_WEBSERVER";
+	private final String KEY_NAME = "p0";
+
+	private Logger logger;
+
+	/**
+	 * Public constructor.
+	 * 
+	 * @throws Exception
+	 */
+	public Ec2CloudProvider(AWSCredentials credentials) throws Exception {
+		logger = LoggerFactory.getLogger(Ec2CloudProvider.class);
+		init(credentials);
+	}
+
+	@Override
+	public Map<String, InstanceStatus> describeInstances(Collection<String> instanceIds) {
+		Map<String, InstanceStatus> statuses = new HashMap<String, InstanceStatus>();
+		DescribeInstancesRequest describeInstanceRequest = new DescribeInstancesRequest()
+				.withInstanceIds(instanceIds);
+		DescribeInstancesResult describeInstanceResult = ec2.describeInstances(describeInstanceRequest);
+		for (Reservation reservation : describeInstanceResult.getReservations()) {
+			for (Instance instance : reservation.getInstances()) {
+				statuses.put(instance.getInstanceId(),
+						new InstanceStatus(instance.getState().getCode(), instance.getPublicDnsName()));
+			}
+		}
+		return statuses;
+	}
+
+	/**
+	 * The only information needed to create a client are security credentials
+	 * consisting of the AWS Access Key ID and Secret Access Key. All other
+	 * configuration, such as the service endpoints, are performed
+	 * automatically. Client parameters, such as proxies, can be specified in an
+	 * optional ClientConfiguration object when constructing a client.
+	 *
+	 * @see com.amazonaws.auth.BasicAWSCredentials
+	 * @see com.amazonaws.auth.PropertiesCredentials
+	 * @see com.amazonaws.ClientConfiguration
+	 */
+	private void init(AWSCredentials credentials) throws Exception {
+		ec2 = new AmazonEC2Client(credentials);
+		Region usEast = Region.getRegion(Regions.US_EAST_1);
+		ec2.setRegion(usEast);
+		tags = new ArrayList<>();
+		tags.add(new Tag("Name", "Server"));
+
+		// Create a new security group.
+		try {
+			CreateSecurityGroupRequest securityGroupRequest = new CreateSecurityGroupRequest(SECURITY_GROUP,
+					"Elastic Webserver");
+			CreateSecurityGroupResult result = ec2.createSecurityGroup(securityGroupRequest);
+			logger.info(String.format("Security group created: [%s]", result.getGroupId()));
+		} catch (AmazonServiceException ase) {
+			// Likely this means that the group is already created, so ignore.
+			logger.warn(ase.getMessage());
+		}
+
+		String ipAddr = "0.0.0.0/0";
+
+		// Create a range that you would like to populate.
+		List<String> ipRanges = Collections.singletonList(ipAddr);
+
+		// Open up All ports.
+		IpPermission ipPermission = new IpPermission().withIpProtocol("tcp").withFromPort(new Integer(0))
+				.withToPort(new Integer(65535)).withIpRanges(ipRanges);
+
+		List<IpPermission> ipPermissions = Collections.singletonList(ipPermission);
+
+		try {
+			// Authorize the ports to the used.
+			AuthorizeSecurityGroupIngressRequest ingressRequest = new AuthorizeSecurityGroupIngressRequest(
+					SECURITY_GROUP, ipPermissions);
+			ec2.authorizeSecurityGroupIngress(ingressRequest);
+			logger.info(String.format("Ingress port authroized: [%s]", ipPermissions.toString()));
+		} catch (AmazonServiceException ase) {
+			// Ignore because this likely means the zone has already been
+			// authorized.
+			logger.warn(ase.getMessage());
+		}
+	}
+
+	/**
+	 * Launches instance sets security group and tags
+	 * 
+	 * @param instanceType
+	 * @param amiID
+	 * @return instance id
+	 */
+	@Override
+	public String launchInstance(String instanceType, String amiID) {
+
+		RunInstancesRequest runInstancesRequest = new RunInstancesRequest();
+		runInstancesRequest.setInstanceType(instanceType);
+		runInstancesRequest.setImageId(amiID);
+		runInstancesRequest.setMinCount(Integer.valueOf(1));
+		runInstancesRequest.setMaxCount(Integer.valueOf(1));
+		runInstancesRequest.setKeyName(KEY_NAME);
+		runInstancesRequest.setMonitoring(true);
+
+		// Add the security group to the request.
+		ArrayList<String> securityGroups = new ArrayList<String>();
+		securityGroups.add(SECURITY_GROUP);
+		runInstancesRequest.setSecurityGroups(securityGroups);
+
+		RunInstancesResult runResult = ec2.runInstances(runInstancesRequest);
+		String instanceId = runResult.getReservation().getInstances().get(0).getInstanceId();
+		logger.info("Starting Server Ondemand: " + instanceId);
+		tagResources(Collections.singletonList(instanceId), tags);
+		return instanceId;
+	}
+
+	@Override
+	public void terminateInstances(List<String> instanceIds) {
+		ec2.terminateInstances(new TerminateInstancesRequest(instanceIds));
+	}
+
+	/**
+	 * Tag any of the resources we specify.
+	 * 
+	 * @param resources
+	 * @param tags
+	 */
+	private void tagResources(List<String> resources, List<Tag> tags) {
+		// Create a tag request.
+		CreateTagsRequest createTagsRequest = new CreateTagsRequest();
+		createTagsRequest.setResources(resources);
+		createTagsRequest.setTags(tags);
+
+		// Try to tag the Spot request submitted.
+		try {
+			ec2.createTags(createTagsRequest);
+		} catch (AmazonServiceException e) {
+			// Write out any exceptions that may have occurred.
+			logger.warn("Error tagging instances");
+			logger.warn("Caught Exception: " + e.getMessage());
+			logger.warn("Reponse Status Code: " + e.getStatusCode());
+			logger.warn("Error Code: " + e.getErrorCode());
+			logger.warn("Request ID: " + e.getRequestId());
+		}
+
+	}
+}
\ No newline at end of file
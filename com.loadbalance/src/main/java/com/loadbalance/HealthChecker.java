@@ -0,0 +1,84 @@
+package com.loadbalance;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.loadbalance.LoadBalancerHandler.Host;
+
+/**
+ * Periodically probes /health on every host. A host is ejected after a number
+ * of consecutive failures and re-admitted with a slow start once it passes
+ * again. The scheduler thread only fires the probes, responses arrive
+ * asynchronously on the probe IO thread.
+ */
+public class HealthChecker {
+
+	private static final String HEALTH_PATH = "/health";
+
+	private final LoadBalancerHandler handler;
+	private final BackendProbe probe;
+	private final int intervalSeconds;
+	private final int timeoutMillis;
+	private final int maxFailures;
+	private final ScheduledExecutorService scheduler;
+	private Logger logger;
+
+	public HealthChecker(LoadBalancerHandler handler, BackendProbe probe, int intervalSeconds, int timeoutMillis,
+			int maxFailures) {
+		logger = LoggerFactory.getLogger(HealthChecker.class);
+		this.handler = handler;
+		this.probe = probe;
+		this.intervalSeconds = intervalSeconds;
+		this.timeoutMillis = timeoutMillis;
+		this.maxFailures = maxFailures;
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	public void start() {
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkAll();
+				} catch (Exception e) {
+					logger.error("Health check round failed", e);
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		logger.info("Health checks every " + intervalSeconds + "s");
+	}
+
+	public void stop() {
+		scheduler.shutdownNow();
+	}
+
+	private void checkAll() {
+		for (final Host host : handler.getHosts()) {
+			if (host.isDraining()) {
+				continue;
+			}
+			probe.get(host.getUri(), HEALTH_PATH, timeoutMillis, new BackendProbe.ProbeCallback() {
+				@Override
+				public void completed(int statusCode, String body) {
+					if (statusCode == 200) {
+						host.healthCheckPassed();
+					} else {
+						logger.debug("Health check of " + host.getUri() + " returned " + statusCode);
+						host.healthCheckFailed(maxFailures);
+					}
+				}
+
+				@Override
+				public void failed(IOException e) {
+					logger.debug("Health check of " + host.getUri() + " failed " + e.getMessage());
+					host.healthCheckFailed(maxFailures);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.loadbalance;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.loadbalance.LoadBalancerHandler.Host;
+
+/**
+ * Holds the set of hosts as an immutable snapshot published through a single
+ * atomic reference. Readers on the IO threads never lock, writers rebuild the
+ * snapshot and swap it in.
+ */
+public class HostRegistry {
+
+	private static final int[] NO_INDICES = {};
+
+	private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>(
+			new Snapshot(new Host[0]));
+
+	public Snapshot snapshot() {
+		return current.get();
+	}
+
+	public void add(Host host) {
+		Snapshot existing, next;
+		do {
+			existing = current.get();
+			Host[] hosts = new Host[existing.hosts.length + 1];
+			System.arraycopy(existing.hosts, 0, hosts, 0, existing.hosts.length);
+			hosts[existing.hosts.length] = host;
+			next = new Snapshot(hosts);
+		} while (!current.compareAndSet(existing, next));
+	}
+
+	/**
+	 * Removes the host with the given instance id or, when the id is null,
+	 * the given URI.
+	 * 
+	 * @return the removed host or null if there was no such host
+	 */
+	public Host remove(URI uri, String instanceId) {
+		Snapshot existing, next;
+		Host removed;
+		do {
+			existing = current.get();
+			removed = instanceId == null ? existing.byUri.get(uri) : existing.byInstanceId.get(instanceId);
+			if (removed == null) {
+				return null;
+			}
+			Host[] hosts = new Host[existing.hosts.length - 1];
+			int j = 0;
+			for (Host host : existing.hosts) {
+				if (host != removed) {
+					hosts[j++] = host;
+				}
+			}
+			next = new Snapshot(hosts);
+		} while (!current.compareAndSet(existing, next));
+		return removed;
+	}
+
+	public static final class Snapshot {
+		final Host[] hosts;
+		private final Map<String, Host> byInstanceId;
+		private final Map<URI, Host> byUri;
+		private final Map<String, Host> byRoute;
+		private final Map<String, int[]> indicesByType;
+
+		private Snapshot(Host[] hosts) {
+			this.hosts = hosts;
+			Map<String, Host> byInstanceId = new HashMap<String, Host>();
+			Map<URI, Host> byUri = new HashMap<URI, Host>();
+			Map<String, Host> byRoute = new HashMap<String, Host>();
+			Map<String, List<Integer>> typeLists = new HashMap<String, List<Integer>>();
+			for (int i = 0; i < hosts.length; i++) {
+				Host host = hosts[i];
+				byUri.put(host.uri, host);
+				if (host.instanceId != null) {
+					byInstanceId.put(host.instanceId, host);
+				}
+				if (host.jvmRoute != null) {
+					byRoute.put(host.jvmRoute, host);
+				}
+				if (host.type != null) {
+					List<Integer> indices = typeLists.get(host.type);
+					if (indices == null) {
+						indices = new ArrayList<Integer>();
+						typeLists.put(host.type, indices);
+					}
+					indices.add(i);
+				}
+			}
+			Map<String, int[]> indicesByType = new HashMap<String, int[]>();
+			for (Map.Entry<String, List<Integer>> entry : typeLists.entrySet()) {
+				List<Integer> list = entry.getValue();
+				int[] indices = new int[list.size()];
+				for (int i = 0; i < indices.length; i++) {
+					indices[i] = list.get(i);
+				}
+				indicesByType.put(entry.getKey(), indices);
+			}
+			this.byInstanceId = Collections.unmodifiableMap(byInstanceId);
+			this.byUri = Collections.unmodifiableMap(byUri);
+			this.byRoute = Collections.unmodifiableMap(byRoute);
+			this.indicesByType = Collections.unmodifiableMap(indicesByType);
+		}
+
+		public Host[] getHosts() {
+			return hosts;
+		}
+
+		public Host getByInstanceId(String instanceId) {
+			return byInstanceId.get(instanceId);
+		}
+
+		public Host getByUri(URI uri) {
+			return byUri.get(uri);
+		}
+
+		public Host getByRoute(String jvmRoute) {
+			return byRoute.get(jvmRoute);
+		}
+
+		/**
+		 * @return indices into getHosts() of the hosts of an instance type
+		 */
+		public int[] indicesOfType(String instanceType) {
+			int[] indices = indicesByType.get(instanceType);
+			return indices == null ? NO_INDICES : indices;
+		}
+	}
+}
@@ -3,4 +3,10 @@ package com.loadbalance;
 public interface InstanceLaunchedCallback {
 	public void instanceLaunched(int launchConfigId,String dnsName,String instanceId);
 	public void instanceTerminated(int launchConfigId,String instanceId);
+	/**
+	 * An instance launched on demand will not become healthy: the launch
+	 * failed, it went away while pending or never answered /health. The
+	 * instance id is null if the launch itself failed.
+	 */
+	public void instanceFailed(int launchConfigId,String instanceId);
 }
@@ -0,0 +1,406 @@
+package com.loadbalance;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.loadbalance.CloudProvider.InstanceStatus;
+
+/**
+ * Follows launched and terminated instances through pending, running,
+ * warming, healthy, draining and terminated on one scheduler thread. Every
+ * poll looks up all pending and draining instances in a single
+ * describeInstances call and probes /health of the warming ones. An instance
+ * is handed to the load balancer as soon as its /health answers, unless it
+ * was launched as a standby. Standbys wait booted and healthy outside the
+ * load balancer until a scale out promotes them, and are probed every poll
+ * so one that dies while waiting is replaced. An instance that fails to
+ * launch, goes away while pending or does not answer /health within the
+ * warming timeout is reported to its callback so the launch config stops
+ * waiting for it.
+ */
+public class InstanceLifecycle {
+
+	public enum State {
+		PENDING, RUNNING, WARMING, STANDBY, HEALTHY, DRAINING, TERMINATED
+	}
+
+	private static final String HEALTH_PATH = "/health";
+	/**
+	 * Consecutive failed probes after which a standby is replaced
+	 */
+	private static final int STANDBY_MAX_MISSES = 3;
+
+	private class ManagedInstance {
+		final String instanceId;
+		final String instanceType;
+		final String amiID;
+		final int launchConfigId;
+		final InstanceLaunchedCallback callback;
+		final boolean standby;
+		volatile State state;
+		String address;
+		URI uri;
+		/**
+		 * System.nanoTime() by which a warming instance has to be healthy
+		 */
+		long warmingDeadline;
+		/**
+		 * Consecutive failed probes of a standby, only used on the scheduler
+		 * thread
+		 */
+		int missedProbes;
+
+		ManagedInstance(String instanceId, String instanceType, String amiID, int launchConfigId,
+				InstanceLaunchedCallback callback, boolean standby, State state) {
+			this.instanceId = instanceId;
+			this.instanceType = instanceType;
+			this.amiID = amiID;
+			this.launchConfigId = launchConfigId;
+			this.callback = callback;
+			this.standby = standby;
+			this.state = state;
+		}
+
+		/**
+		 * Leaving STANDBY races with promote from other threads, every other
+		 * change happens on the scheduler thread
+		 */
+		synchronized boolean transition(State from, State to) {
+			if (state != from) {
+				return false;
+			}
+			state = to;
+			return true;
+		}
+	}
+
+	private final CloudProvider provider;
+	private final BackendProbe probe;
+	private final long pollInterval;
+	private final int healthTimeout;
+	private final long warmingTimeoutNanos;
+	private final ScheduledExecutorService scheduler;
+	/**
+	 * Only changed on the scheduler thread
+	 */
+	private final Map<String, ManagedInstance> instances = new ConcurrentHashMap<String, ManagedInstance>();
+	private Logger logger;
+
+	/**
+	 * @param pollInterval
+	 *            seconds between polls
+	 * @param healthTimeout
+	 *            milliseconds to wait for /health
+	 * @param warmingTimeout
+	 *            seconds a running instance gets to answer /health before
+	 *            it is given up on
+	 */
+	public InstanceLifecycle(CloudProvider provider, BackendProbe probe, long pollInterval, int healthTimeout,
+			int warmingTimeout) {
+		logger = LoggerFactory.getLogger(InstanceLifecycle.class);
+		this.provider = provider;
+		this.probe = probe;
+		this.pollInterval = pollInterval;
+		this.healthTimeout = healthTimeout;
+		this.warmingTimeoutNanos = TimeUnit.SECONDS.toNanos(warmingTimeout);
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	public void start() {
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					poll();
+				} catch (Exception e) {
+					logger.error("Instance poll failed", e);
+				}
+			}
+		}, pollInterval, pollInterval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Launches an instance in the background, the callback is told once it is
+	 * healthy
+	 */
+	public void launchOnDemand(String instanceType, String amiID, int launchConfigId,
+			InstanceLaunchedCallback callback) {
+		launch(instanceType, amiID, launchConfigId, callback, false);
+	}
+
+	/**
+	 * Launches an instance that stays out of the load balancer until promoted
+	 */
+	public void launchStandby(String instanceType, String amiID, int launchConfigId,
+			InstanceLaunchedCallback callback) {
+		launch(instanceType, amiID, launchConfigId, callback, true);
+	}
+
+	/**
+	 * Hands a standby of the launch config to its callback and launches a new
+	 * standby in its place. The callback runs on the scheduler thread, like
+	 * that of every other instance.
+	 * 
+	 * @return false if no standby is ready
+	 */
+	public boolean promote(final int launchConfigId) {
+		for (final ManagedInstance instance : instances.values()) {
+			if (instance.launchConfigId == launchConfigId && instance.transition(State.STANDBY, State.HEALTHY)) {
+				logger.info("Promoting standby " + instance.instanceId);
+				scheduler.execute(new Runnable() {
+					@Override
+					public void run() {
+						instance.callback.instanceLaunched(launchConfigId, instance.address, instance.instanceId);
+					}
+				});
+				launchStandby(instance.instanceType, instance.amiID, launchConfigId, instance.callback);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void launch(final String instanceType, final String amiID, final int launchConfigId,
+			final InstanceLaunchedCallback callback, final boolean standby) {
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				String instanceId;
+				try {
+					instanceId = provider.launchInstance(instanceType, amiID);
+				} catch (Exception e) {
+					logger.error("Launching " + instanceType + " failed", e);
+					if (!standby) {
+						callback.instanceFailed(launchConfigId, null);
+					}
+					return;
+				}
+				instances.put(instanceId, new ManagedInstance(instanceId, instanceType, amiID, launchConfigId,
+						callback, standby, State.PENDING));
+			}
+		});
+	}
+
+	/**
+	 * Terminates the instances in the background, the callback is told once
+	 * each of them is gone
+	 */
+	public void terminateInstance(final List<String> instanceIds, final int launchConfigId,
+			final InstanceLaunchedCallback callback) {
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (String instanceId : instanceIds) {
+					ManagedInstance instance = instances.get(instanceId);
+					if (instance == null) {
+						// Started before the load balancer, e.g. from the
+						// server pool
+						instance = new ManagedInstance(instanceId, null, null, launchConfigId, callback, false,
+								State.DRAINING);
+						instances.put(instanceId, instance);
+					}
+					synchronized (instance) {
+						instance.state = State.DRAINING;
+					}
+				}
+				try {
+					provider.terminateInstances(instanceIds);
+				} catch (Exception e) {
+					logger.error("Terminating " + instanceIds + " failed", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return instances of the launch config currently in the state
+	 */
+	public int count(int launchConfigId, State state) {
+		int count = 0;
+		for (ManagedInstance instance : instances.values()) {
+			if (instance.state == state && instance.launchConfigId == launchConfigId) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void poll() {
+		List<String> waiting = new ArrayList<String>();
+		for (ManagedInstance instance : instances.values()) {
+			if (instance.state == State.PENDING || instance.state == State.DRAINING) {
+				waiting.add(instance.instanceId);
+			}
+		}
+		if (!waiting.isEmpty()) {
+			Map<String, InstanceStatus> statuses = provider.describeInstances(waiting);
+			for (String instanceId : waiting) {
+				InstanceStatus status = statuses.get(instanceId);
+				ManagedInstance instance = instances.get(instanceId);
+				if (instance.state == State.PENDING && status != null
+						&& status.state == CloudProvider.STATE_RUNNING) {
+					running(instance, status.address);
+				} else if (instance.state == State.DRAINING
+						&& (status == null || status.state == CloudProvider.STATE_TERMINATED)) {
+					terminated(instance);
+				} else if (instance.state == State.PENDING && status != null
+						&& status.state >= CloudProvider.STATE_SHUTTING_DOWN) {
+					logger.warn("Instance " + instanceId + " went away while pending");
+					failed(instance);
+				}
+			}
+		}
+		long now = System.nanoTime();
+		for (ManagedInstance instance : instances.values()) {
+			if (instance.state != State.WARMING) {
+				continue;
+			}
+			if (now - instance.warmingDeadline > 0) {
+				logger.warn("Instance " + instance.instanceId + " not healthy after warming timeout, terminating");
+				instance.state = State.TERMINATED;
+				terminateQuietly(instance.instanceId);
+				failed(instance);
+			} else {
+				checkHealth(instance);
+			}
+		}
+		for (ManagedInstance instance : instances.values()) {
+			if (instance.state == State.STANDBY) {
+				checkStandby(instance);
+			}
+		}
+	}
+
+	private void running(ManagedInstance instance, String address) {
+		instance.state = State.RUNNING;
+		logger.info("Instance Running " + instance.instanceId + " at " + address);
+		try {
+			instance.address = address;
+			instance.uri = AutoScaleConfig.getURI(address);
+		} catch (URISyntaxException e) {
+			logger.error("Bad address " + address + " of " + instance.instanceId + ", terminating");
+			instance.state = State.TERMINATED;
+			terminateQuietly(instance.instanceId);
+			failed(instance);
+			return;
+		}
+		instance.warmingDeadline = System.nanoTime() + warmingTimeoutNanos;
+		instance.state = State.WARMING;
+	}
+
+	private void checkHealth(final ManagedInstance instance) {
+		probe.get(instance.uri, HEALTH_PATH, healthTimeout, new BackendProbe.ProbeCallback() {
+			@Override
+			public void completed(int statusCode, String body) {
+				if (statusCode != 200) {
+					return;
+				}
+				scheduler.execute(new Runnable() {
+					@Override
+					public void run() {
+						healthy(instance);
+					}
+				});
+			}
+
+			@Override
+			public void failed(IOException e) {
+				// Still booting, try again next poll
+			}
+		});
+	}
+
+	/**
+	 * Probes a standby that is waiting for promotion, it may have died since
+	 * it became healthy
+	 */
+	private void checkStandby(final ManagedInstance instance) {
+		probe.get(instance.uri, HEALTH_PATH, healthTimeout, new BackendProbe.ProbeCallback() {
+			@Override
+			public void completed(final int statusCode, String body) {
+				scheduler.execute(new Runnable() {
+					@Override
+					public void run() {
+						standbyProbed(instance, statusCode == 200);
+					}
+				});
+			}
+
+			@Override
+			public void failed(IOException e) {
+				scheduler.execute(new Runnable() {
+					@Override
+					public void run() {
+						standbyProbed(instance, false);
+					}
+				});
+			}
+		});
+	}
+
+	private void standbyProbed(ManagedInstance instance, boolean healthy) {
+		if (healthy) {
+			instance.missedProbes = 0;
+			return;
+		}
+		if (++instance.missedProbes < STANDBY_MAX_MISSES || !instance.transition(State.STANDBY, State.TERMINATED)) {
+			return;
+		}
+		logger.warn("Standby " + instance.instanceId + " stopped answering " + HEALTH_PATH + ", replacing it");
+		instances.remove(instance.instanceId);
+		terminateQuietly(instance.instanceId);
+		launchStandby(instance.instanceType, instance.amiID, instance.launchConfigId, instance.callback);
+	}
+
+	private void healthy(ManagedInstance instance) {
+		if (instance.standby) {
+			if (instance.transition(State.WARMING, State.STANDBY)) {
+				logger.info("Instance Standby " + instance.instanceId);
+			}
+			return;
+		}
+		if (!instance.transition(State.WARMING, State.HEALTHY)) {
+			return;
+		}
+		logger.info("Instance Healthy " + instance.instanceId);
+		instance.callback.instanceLaunched(instance.launchConfigId, instance.address, instance.instanceId);
+	}
+
+	/**
+	 * Forgets an instance that will not become healthy. Its launch config
+	 * stops waiting for it.
+	 */
+	private void failed(ManagedInstance instance) {
+		instances.remove(instance.instanceId);
+		if (!instance.standby) {
+			instance.callback.instanceFailed(instance.launchConfigId, instance.instanceId);
+		}
+	}
+
+	private void terminateQuietly(String instanceId) {
+		try {
+			provider.terminateInstances(Collections.singletonList(instanceId));
+		} catch (Exception e) {
+			logger.error("Terminating " + instanceId + " failed", e);
+		}
+	}
+
+	private void terminated(ManagedInstance instance) {
+		instance.state = State.TERMINATED;
+		instances.remove(instance.instanceId);
+		logger.info("Instance Terminated " + instance.instanceId);
+		instance.callback.instanceTerminated(instance.launchConfigId, instance.instanceId);
+	}
+}
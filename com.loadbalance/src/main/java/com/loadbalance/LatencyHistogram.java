@@ -0,0 +1,110 @@
+package com.loadbalance;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear latency histogram in microseconds. Every power of two is split
+ * into SUB_BUCKETS linear buckets, so quantiles are within ~12% of the real
+ * value. Recording only touches atomic counters and histograms with the same
+ * layout can be merged by adding counts.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/**
+	 * The last power of two covered starts at 2^31 microseconds, about 35
+	 * minutes. Anything from 2^32 on is clamped into the last bucket.
+	 */
+	private static final int MAX_EXPONENT = 31;
+	/**
+	 * Values below SUB_BUCKETS take one bucket each, every power of two from
+	 * SUB_BUCKETS up to MAX_EXPONENT takes SUB_BUCKETS more
+	 */
+	static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	static int bucketFor(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) Math.max(micros, 0);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the largest value in microseconds that falls in the bucket
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	public void record(long latencyNanos) {
+		long micros = latencyNanos / 1000;
+		counts.incrementAndGet(bucketFor(micros));
+		count.increment();
+		sum.add(micros);
+	}
+
+	public void merge(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long value = other.counts.get(i);
+			if (value != 0) {
+				counts.addAndGet(i, value);
+			}
+		}
+		count.add(other.count.sum());
+		sum.add(other.sum.sum());
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return sum of all recorded latencies in microseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getBucketCount(int bucket) {
+		return counts.get(bucket);
+	}
+
+	/**
+	 * @return the latency in microseconds below which the given fraction of
+	 *         requests fall, or 0 if nothing was recorded
+	 */
+	public long quantile(double quantile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank && seen > 0) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+}
@@ -0,0 +1,87 @@
+package com.loadbalance;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.loadbalance.LoadBalancerHandler.Host;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+
+/**
+ * Plain text report of the latency model, per instance type and per host, so
+ * we can see which instance types are slow for which job.
+ */
+public class LatencyReportHandler implements HttpHandler {
+
+	private final LoadBalancerHandler loadBalancer;
+
+	public LatencyReportHandler(LoadBalancerHandler loadBalancer) {
+		this.loadBalancer = loadBalancer;
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		if (exchange.isInIoThread()) {
+			exchange.dispatch(this);
+			return;
+		}
+		Host[] hosts = loadBalancer.getHosts();
+		RequestType[] types = RequestType.values();
+		StringBuilder builder = new StringBuilder();
+
+		// Merge host histograms by instance type
+		Map<String, LatencyHistogram[]> byInstanceType = new LinkedHashMap<String, LatencyHistogram[]>();
+		for (Host host : hosts) {
+			String instanceType = host.getType() == null ? "unknown" : host.getType();
+			LatencyHistogram[] merged = byInstanceType.get(instanceType);
+			if (merged == null) {
+				merged = new LatencyHistogram[types.length];
+				for (int i = 0; i < types.length; i++) {
+					merged[i] = new LatencyHistogram();
+				}
+				byInstanceType.put(instanceType, merged);
+			}
+			for (int i = 0; i < types.length; i++) {
+				merged[i].merge(host.getLatency(types[i]).getHistogram());
+			}
+		}
+
+		builder.append("instance_type request_type count p50_ms p95_ms p99_ms\n");
+		for (Map.Entry<String, LatencyHistogram[]> entry : byInstanceType.entrySet()) {
+			for (int i = 0; i < types.length; i++) {
+				LatencyHistogram histogram = entry.getValue()[i];
+				if (histogram.getCount() == 0) {
+					continue;
+				}
+				builder.append(entry.getKey()).append(' ').append(types[i].name).append(' ');
+				builder.append(histogram.getCount()).append(' ');
+				appendPercentiles(builder, histogram);
+			}
+		}
+
+		builder.append("\nhost request_type count ewma_ms p50_ms p95_ms p99_ms\n");
+		for (Host host : hosts) {
+			for (int i = 0; i < types.length; i++) {
+				LatencyStats stats = host.getLatency(types[i]);
+				if (stats.getHistogram().getCount() == 0) {
+					continue;
+				}
+				builder.append(host.getUri()).append(' ').append(types[i].name).append(' ');
+				builder.append(stats.getHistogram().getCount()).append(' ');
+				builder.append(String.format("%.1f", stats.getEwma() / 1000000)).append(' ');
+				appendPercentiles(builder, stats.getHistogram());
+			}
+		}
+
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
+		exchange.getResponseSender().send(builder.toString());
+	}
+
+	private static void appendPercentiles(StringBuilder builder, LatencyHistogram histogram) {
+		builder.append(histogram.quantile(0.5) / 1000).append(' ');
+		builder.append(histogram.quantile(0.95) / 1000).append(' ');
+		builder.append(histogram.quantile(0.99) / 1000).append('\n');
+	}
+}
@@ -0,0 +1,58 @@
+package com.loadbalance;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of one request type on one host: an EWMA for routing decisions and
+ * a histogram for percentiles. Also an EWMA of the service time the worker
+ * reports, which leaves out time spent queued.
+ */
+public class LatencyStats {
+
+	private static final double ALPHA = 0.1;
+
+	private final AtomicLong ewmaBits = new AtomicLong(Double.doubleToRawLongBits(Double.NaN));
+	private final AtomicLong serviceBits = new AtomicLong(Double.doubleToRawLongBits(Double.NaN));
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	public void record(long latencyNanos) {
+		histogram.record(latencyNanos);
+		update(ewmaBits, latencyNanos);
+	}
+
+	/**
+	 * Records the time the worker spent running the job
+	 */
+	public void recordService(long serviceNanos) {
+		update(serviceBits, serviceNanos);
+	}
+
+	private static void update(AtomicLong bits, long nanos) {
+		long current, next;
+		do {
+			current = bits.get();
+			double old = Double.longBitsToDouble(current);
+			double ewma = Double.isNaN(old) ? nanos : old + ALPHA * (nanos - old);
+			next = Double.doubleToRawLongBits(ewma);
+		} while (!bits.compareAndSet(current, next));
+	}
+
+	/**
+	 * @return EWMA latency in nanoseconds, NaN until the first request
+	 */
+	public double getEwma() {
+		return Double.longBitsToDouble(ewmaBits.get());
+	}
+
+	/**
+	 * @return EWMA service time in nanoseconds, NaN until the worker reports
+	 *         one
+	 */
+	public double getServiceEwma() {
+		return Double.longBitsToDouble(serviceBits.get());
+	}
+
+	public LatencyHistogram getHistogram() {
+		return histogram;
+	}
+}
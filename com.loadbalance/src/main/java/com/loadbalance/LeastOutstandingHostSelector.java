@@ -0,0 +1,32 @@
+package com.loadbalance;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.loadbalance.LoadBalancerHandler.Host;
+import com.loadbalance.LoadBalancerHandler.HostSelector;
+
+/**
+ * Picks the less loaded of two randomly sampled hosts (power of two choices)
+ * using the in flight counters kept by LoadBalancerHandler.
+ */
+class LeastOutstandingHostSelector implements HostSelector {
+
+	public int selectHost(Host[] availableHosts) {
+		return selectHost(availableHosts, null);
+	}
+
+	public int selectHost(Host[] availableHosts, String requestType) {
+		int length = availableHosts.length;
+		if (length == 1) {
+			return 0;
+		}
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		int first = rand.nextInt(length);
+		// Second sample is always a different host
+		int second = (first + 1 + rand.nextInt(length - 1)) % length;
+		if (availableHosts[second].getInFlight() < availableHosts[first].getInFlight()) {
+			return second;
+		}
+		return first;
+	}
+}
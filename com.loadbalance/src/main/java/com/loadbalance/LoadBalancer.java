@@ -2,6 +2,7 @@ package com.loadbalance;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.management.ManagementFactory;
 import java.net.HttpURLConnection;
@@ -18,10 +19,13 @@ import org.slf4j.LoggerFactory;
 import org.xnio.Options;
 
 import com.google.gson.Gson;
+import com.loadbalance.LoadBalancerHandler.HostSelector;
 
+import io.undertow.Handlers;
 import io.undertow.Undertow;
 import io.undertow.UndertowOptions;
 import io.undertow.client.UndertowClient;
+import io.undertow.server.HttpHandler;
 import io.undertow.server.handlers.ResponseCodeHandler;
 import io.undertow.server.handlers.proxy.ProxyHandler;
 
@@ -34,8 +38,15 @@ public class LoadBalancer {
 		URL obj = new URL("http://169.254.169.254/latest/meta-data/public-hostname");
 
 		HttpURLConnection con = (HttpURLConnection) obj.openConnection();
+		con.setConnectTimeout(1000);
 
-		int responseCode = con.getResponseCode();
+		int responseCode;
+		try {
+			responseCode = con.getResponseCode();
+		} catch (IOException e) {
+			// Not on EC2, e.g. with the simulated provider
+			return "0.0.0.0";
+		}
 		if (responseCode == HttpURLConnection.HTTP_OK) {
 
 			BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
@@ -52,6 +63,32 @@ public class LoadBalancer {
 		}
 	}
 
+	public static HostSelector createHostSelector(AutoScaleConfig config) {
+		String name = config.hostSelector;
+		if (name == null) {
+			return new AwsScalingHostSelector();
+		}
+		switch (name) {
+		case "roundrobin":
+			return new RoundRobinHostSelector();
+		case "random":
+			return new RandomHostSelector();
+		case "leastoutstanding":
+			return new LeastOutstandingHostSelector();
+		case "costaware":
+			return new CostAwareHostSelector();
+		case "pool":
+			if (config.routing == null) {
+				throw new IllegalArgumentException("pool host selector needs a routing table");
+			}
+			return new PoolHostSelector(config.routing, config.poolPolicy, config.poolSaturation);
+		case "affinity":
+			return new AffinityHostSelector(config.affinityLoadFactor);
+		default:
+			return new AwsScalingHostSelector();
+		}
+	}
+
 	public static AutoScaleConfig config;
 	public static Logger logger;
 
@@ -73,19 +110,42 @@ public class LoadBalancer {
 			instanceType[i] = config.launchConfig.get(i).instanceType;
 		}
 		LoadBalancerHandler loadBalancer = new LoadBalancerHandler(UndertowClient.getInstance(),
-				new AwsScalingHostSelector()).setConnectionsPerThread(30).setMaxQueueSize(24);
+				createHostSelector(config)).setConnectionsPerThread(30).setMaxQueueSize(24)
+						.setSlowStart(config.slowStart);
 
+		BackendProbe probe = new BackendProbe();
 		try {
-			config.setupConfig(loadBalancer);
+			config.setupConfig(loadBalancer, probe);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 
+		if (config.healthCheckInterval > 0) {
+			new HealthChecker(loadBalancer, probe, config.healthCheckInterval, config.healthCheckTimeout,
+					config.healthCheckFailures).start();
+		}
+
+		HttpHandler proxy = new ProxyHandler(loadBalancer, 600000, ResponseCodeHandler.HANDLE_404);
+		if (config.admission != null) {
+			config.admissionController = new AdmissionController(loadBalancer, proxy, config.admission);
+			proxy = config.admissionController;
+		}
+		if (config.responseCache != null) {
+			// Outermost, a hit takes no admission slot
+			config.responseCacheHandler = new ResponseCacheHandler(proxy, config.responseCache);
+			proxy = config.responseCacheHandler;
+		}
 		Undertow reverseProxy = Undertow.builder().addHttpListener(80, hostname)
 				.setIoThreads(Runtime.getRuntime().availableProcessors() * 2)
 				.setServerOption(UndertowOptions.RECORD_REQUEST_START_TIME, true)
-				.setSocketOption(Options.READ_TIMEOUT, 600000)
-				.setHandler(new ProxyHandler(loadBalancer, 600000, ResponseCodeHandler.HANDLE_404)).build();
+				.setSocketOption(Options.READ_TIMEOUT, 600000).setHandler(proxy).build();
 		reverseProxy.start();
+
+		Undertow admin = Undertow.builder().addHttpListener(config.adminPort, hostname).setIoThreads(1)
+				.setHandler(Handlers.path().addPrefixPath("/latency", new LatencyReportHandler(loadBalancer))
+						.addPrefixPath("/metrics", new PrometheusMetricsHandler(loadBalancer, config))
+						.addPrefixPath("/telemetry", new TelemetryHandler(loadBalancer)))
+				.build();
+		admin.start();
 	}
 }
@@ -7,8 +7,12 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,7 +38,7 @@ import io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType;
 import io.undertow.server.handlers.proxy.ConnectionPoolErrorHandler;
 import io.undertow.util.AttachmentKey;
 import io.undertow.util.AttachmentList;
-import io.undertow.util.CopyOnWriteMap;
+import io.undertow.util.HttpString;
 
 import static org.xnio.IoUtils.safeClose;
 
@@ -52,11 +56,45 @@ public class LoadBalancerHandler implements ProxyClient {
 
 	private static final AttachmentKey<AttachmentList<Host>> ATTEMPTED_HOSTS = AttachmentKey.createList(Host.class);
 
+	/**
+	 * The host currently counting this exchange as in flight.
+	 */
+	private static final AttachmentKey<Host> IN_FLIGHT_HOST = AttachmentKey.create(Host.class);
+
+	/**
+	 * Header the workers put their lane load on, queued and running jobs over
+	 * the jobs the lane runs at once
+	 */
+	static final HttpString WORKER_LOAD = new HttpString("X-Worker-Load");
+
+	/**
+	 * Header the workers put the microseconds the job ran on, without the
+	 * time it was queued
+	 */
+	static final HttpString SERVICE_TIME = new HttpString("X-Service-Time");
+
+	/**
+	 * Hosts reporting at least this load for a type are passed over for it
+	 * while another host has room
+	 */
+	static final double WORKER_OVERLOAD = 2.0;
+
+	/**
+	 * Nanoseconds a reported worker load is trusted
+	 */
+	private static final long WORKER_LOAD_TTL = TimeUnit.SECONDS.toNanos(2);
+
 	/**
 	 * Time in seconds between retries for problem servers
 	 */
 	private volatile int problemServerRetry = 10;
 
+	/**
+	 * Time in nanoseconds over which a new or re-admitted host ramps up to its
+	 * full share of requests
+	 */
+	private volatile long slowStartNanos = TimeUnit.SECONDS.toNanos(30);
+
 	private final Set<String> sessionCookieNames = new CopyOnWriteArraySet<String>();
 
 	/**
@@ -70,13 +108,17 @@ public class LoadBalancerHandler implements ProxyClient {
 	/**
 	 * The hosts list.
 	 */
-	private volatile Host[] hosts = {};
+	private final HostRegistry registry = new HostRegistry();
+
+	/**
+	 * Requests received per request type, the last slot counts requests
+	 * without a known type
+	 */
+	private final LongAdder[] arrivals = new LongAdder[RequestType.values().length + 1];
 
 	private final HostSelector hostSelector;
 	private final UndertowClient client;
 
-	private final Map<String, Host> routes = new CopyOnWriteMap<String, Host>();
-
 	private static final ProxyTarget PROXY_TARGET = new ProxyTarget() {
 	};
 
@@ -94,6 +136,9 @@ public class LoadBalancerHandler implements ProxyClient {
 		logger = LoggerFactory.getLogger(LoadBalancerHandler.class);
 		this.client = client;
 		sessionCookieNames.add("JSESSIONID");
+		for (int i = 0; i < arrivals.length; i++) {
+			arrivals[i] = new LongAdder();
+		}
 		// Default Round Robin
 		if (hostSelector == null) {
 			this.hostSelector = new RoundRobinHostSelector();
@@ -121,6 +166,11 @@ public class LoadBalancerHandler implements ProxyClient {
 		return problemServerRetry;
 	}
 
+	public LoadBalancerHandler setSlowStart(int slowStartSeconds) {
+		this.slowStartNanos = TimeUnit.SECONDS.toNanos(slowStartSeconds);
+		return this;
+	}
+
 	public int getConnectionsPerThread() {
 		return connectionsPerThread;
 	}
@@ -149,91 +199,68 @@ public class LoadBalancerHandler implements ProxyClient {
 		return this;
 	}
 
-	public synchronized LoadBalancerHandler addHost(final URI host) {
+	public LoadBalancerHandler addHost(final URI host) {
 		return addHost(host, null);
 	}
 
-	public synchronized LoadBalancerHandler addHost(final URI host, String jvmRoute, String ami, String type,
-			String instanceId) {
-		Host h = new Host(jvmRoute, null, host, ami, type, instanceId, OptionMap.EMPTY);
-		Host[] existing = hosts;
-		Host[] newHosts = new Host[existing.length + 1];
-		System.arraycopy(existing, 0, newHosts, 0, existing.length);
-		newHosts[existing.length] = h;
-		this.hosts = newHosts;
-		if (jvmRoute != null) {
-			this.routes.put(jvmRoute, h);
-		}
+	public LoadBalancerHandler addHost(final URI host, String jvmRoute, String ami, String type, String instanceId) {
+		registry.add(new Host(jvmRoute, null, host, ami, type, instanceId, OptionMap.EMPTY));
 		return this;
 	}
 
-	public synchronized LoadBalancerHandler addHost(final URI host, String jvmRoute, OptionMap options) {
+	public LoadBalancerHandler addHost(final URI host, String jvmRoute, OptionMap options) {
 		return addHost(null, host, jvmRoute, options);
 	}
 
-	public synchronized LoadBalancerHandler addHost(final URI host, String jvmRoute) {
+	public LoadBalancerHandler addHost(final URI host, String jvmRoute) {
+		return addHost(null, host, jvmRoute, OptionMap.EMPTY);
+	}
 
-		Host h = new Host(jvmRoute, null, host, OptionMap.EMPTY);
-		Host[] existing = hosts;
-		Host[] newHosts = new Host[existing.length + 1];
-		System.arraycopy(existing, 0, newHosts, 0, existing.length);
-		newHosts[existing.length] = h;
-		this.hosts = newHosts;
-		if (jvmRoute != null) {
-			this.routes.put(jvmRoute, h);
-		}
+	public LoadBalancerHandler addHost(final InetSocketAddress bindAddress, final URI host, String jvmRoute,
+			OptionMap options) {
+		registry.add(new Host(jvmRoute, bindAddress, host, options));
 		return this;
 	}
 
-	public synchronized LoadBalancerHandler addHost(final InetSocketAddress bindAddress, final URI host,
-			String jvmRoute, OptionMap options) {
-		Host h = new Host(jvmRoute, bindAddress, host, options);
-		Host[] existing = hosts;
-		Host[] newHosts = new Host[existing.length + 1];
-		System.arraycopy(existing, 0, newHosts, 0, existing.length);
-		newHosts[existing.length] = h;
-		this.hosts = newHosts;
-		if (jvmRoute != null) {
-			this.routes.put(jvmRoute, h);
-		}
+	/**
+	 * Stops routing to the host with the given instance id, or the given URI
+	 * when the id is null. Its connection pool is closed once the requests
+	 * already in flight to it complete.
+	 */
+	public LoadBalancerHandler removeHost(final URI uri, String instanceId) {
+		drainHost(uri, instanceId, null);
 		return this;
 	}
 
-	public synchronized LoadBalancerHandler removeHost(final URI uri, String instanceId) {
-		int found = -1;
-		Host[] existing = hosts;
-		Host removedHost = null;
-		if (instanceId == null) {
-			for (int i = 0; i < existing.length; ++i) {
-				if (existing[i].uri.equals(uri)) {
-					found = i;
-					removedHost = existing[i];
-					logger.info("Removing host by url " + uri.toString());
-					break;
-				}
-			}
-		} else {
-			for (int i = 0; i < existing.length; ++i) {
-				if (existing[i].instanceId.equals(instanceId)) {
-					found = i;
-					removedHost = existing[i];
-					logger.info("Removing host by instanceid " + instanceId);
-					break;
-				}
-			}
-		}
-		if (found == -1) {
-			return this;
-		}
-		Host[] newHosts = new Host[existing.length - 1];
-		System.arraycopy(existing, 0, newHosts, 0, found);
-		System.arraycopy(existing, found + 1, newHosts, found, existing.length - found - 1);
-		this.hosts = newHosts;
-		removedHost.connectionPool.close();
-		if (removedHost.jvmRoute != null) {
-			routes.remove(removedHost.jvmRoute);
+	/**
+	 * Like removeHost, onClosed runs once the connection pool is closed.
+	 * 
+	 * @return the draining host, whose close() cuts the drain short, or null
+	 *         if there is no such host
+	 */
+	public Host drainHost(final URI uri, String instanceId, Runnable onClosed) {
+		Host removedHost = registry.remove(uri, instanceId);
+		if (removedHost == null) {
+			return null;
 		}
-		return this;
+		logger.info("Removing host " + removedHost.uri + " instanceid " + removedHost.instanceId);
+		removedHost.drain(onClosed);
+		return removedHost;
+	}
+
+	/**
+	 * @return requests received so far of the given type
+	 */
+	public long getArrivals(RequestType requestType) {
+		return arrivals[requestType == null ? arrivals.length - 1 : requestType.ordinal()].sum();
+	}
+
+	public HostRegistry getRegistry() {
+		return registry;
+	}
+
+	public Host[] getHosts() {
+		return registry.snapshot().hosts;
 	}
 
 	@Override
@@ -244,36 +271,12 @@ public class LoadBalancerHandler implements ProxyClient {
 	@Override
 	public void getConnection(ProxyTarget target, HttpServerExchange exchange, ProxyCallback<ProxyConnection> callback,
 			long timeout, TimeUnit timeUnit) {
-		exchange.addExchangeCompleteListener(new ExchangeCompletionListener() {
-
-			public void exchangeEvent(HttpServerExchange exchange, NextListener next) {
-				Map<String, Deque<String>> params = exchange.getQueryParameters();
-				String type, req_id, argument;
-				try {
-					type = params.get("type").getLast();
-					req_id = params.get("id").getLast();
-					argument = params.get("arg").getLast();
-				} catch (Exception e) {
-					// Ignore Exception
-					next.proceed();
-					return;
-				}
-
-				StringBuilder builder = new StringBuilder();
-				builder.append(type);
-				builder.append(" ");
-				builder.append(argument);
-				builder.append(" REQID ");
-				builder.append(req_id);
-				builder.append(" ");
-				builder.append((System.nanoTime() - exchange.getRequestStartTime()) / 1000000);
-				builder.append("ms");
-				builder.append(" ");
-				builder.append(exchange.getStatusCode());
-				// logger.info(builder.toString());
-				next.proceed();
-			}
-		});
+		if (exchange.getAttachment(ATTEMPTED_HOSTS) == null) {
+			// First attempt for this exchange, retries reuse the listener
+			exchange.addExchangeCompleteListener(completionListener);
+			RequestType type = RequestType.fromString(getQueryParameter(exchange, "type"));
+			arrivals[type == null ? arrivals.length - 1 : type.ordinal()].increment();
+		}
 		final ExclusiveConnectionHolder holder = exchange.getConnection().getAttachment(exclusiveConnectionKey);
 		if (holder != null && holder.connection.getConnection().isOpen()) {
 			logger.debug("Exclusive Already ");
@@ -288,6 +291,19 @@ public class LoadBalancerHandler implements ProxyClient {
 			callback.couldNotResolveBackend(exchange);
 		} else {
 			exchange.addToAttachmentList(ATTEMPTED_HOSTS, host);
+			// A retry moves the in flight request to the newly selected host
+			Host previous = exchange.putAttachment(IN_FLIGHT_HOST, host);
+			if (previous != null) {
+				previous.inFlight.decrement();
+				if (previous.draining) {
+					previous.closeIfDrained();
+				}
+			}
+			host.inFlight.increment();
+			if (previous != null) {
+				hostSelector.requestFinished(previous, exchange, -1);
+			}
+			hostSelector.requestStarted(host, exchange);
 
 			logger.debug("Non Exclusivity connecting ");
 			host.connectionPool.connect(target, exchange, callback, timeout, timeUnit, false);
@@ -295,9 +311,47 @@ public class LoadBalancerHandler implements ProxyClient {
 		}
 	}
 
+	private final ExchangeCompletionListener completionListener = new ExchangeCompletionListener() {
+
+		public void exchangeEvent(HttpServerExchange exchange, NextListener next) {
+			Host host = exchange.removeAttachment(IN_FLIGHT_HOST);
+			if (host != null) {
+				host.inFlight.decrement();
+				if (host.draining) {
+					host.closeIfDrained();
+				}
+				long start = exchange.getRequestStartTime();
+				long latency = start == -1 ? -1 : System.nanoTime() - start;
+				RequestType type = RequestType.fromString(getQueryParameter(exchange, "type"));
+				if (latency >= 0) {
+					host.getLatency(type).record(latency);
+				}
+				String load = exchange.getResponseHeaders().getFirst(WORKER_LOAD);
+				if (load != null) {
+					try {
+						host.workerLoadReported(type, Double.parseDouble(load));
+					} catch (NumberFormatException e) {
+						logger.debug("Bad worker load " + load + " from " + host.uri);
+					}
+				}
+				String service = exchange.getResponseHeaders().getFirst(SERVICE_TIME);
+				if (service != null) {
+					try {
+						host.getLatency(type).recordService(TimeUnit.MICROSECONDS.toNanos(Long.parseLong(service)));
+					} catch (NumberFormatException e) {
+						logger.debug("Bad service time " + service + " from " + host.uri);
+					}
+				}
+				hostSelector.requestFinished(host, exchange, latency);
+			}
+			next.proceed();
+		}
+	};
+
 	protected Host selectHost(HttpServerExchange exchange) {
 		AttachmentList<Host> attempted = exchange.getAttachment(ATTEMPTED_HOSTS);
-		Host[] hosts = this.hosts;
+		HostRegistry.Snapshot snapshot = registry.snapshot();
+		Host[] hosts = snapshot.hosts;
 		if (hosts.length == 0) {
 			return null;
 		}
@@ -307,14 +361,11 @@ public class LoadBalancerHandler implements ProxyClient {
 				return sticky;
 			}
 		}
-		Map<String, Deque<String>> params = exchange.getQueryParameters();
-		String type = null;
-		try {
-			type = params.get("type").getLast();
-		} catch (Exception e) {
-			// Ignore Exception
-		}
-		int host = hostSelector.selectHost(hosts, type);
+		String type = getQueryParameter(exchange, "type");
+		String argument = getQueryParameter(exchange, "arg");
+		RequestType requestType = RequestType.fromString(type);
+		long now = System.nanoTime();
+		int host = hostSelector.selectHost(snapshot, type, argument);
 
 		final int startHost = host; // if the all hosts have problems we come
 									// back to this one
@@ -323,8 +374,21 @@ public class LoadBalancerHandler implements ProxyClient {
 		ProxyConnectionPool.AvailabilityType available = null;
 		do {
 			Host selected = hosts[host];
-			if (attempted == null || !attempted.contains(selected)) {
+			if (selected.draining || (attempted != null && attempted.contains(selected))) {
+				// Skip
+			} else if (selected.ejected) {
+				// Failing health checks, only used if nothing else is left
+				if (problem == null) {
+					problem = selected;
+				}
+			} else if (!selected.admit(slowStartNanos) || selected.isOverloaded(requestType, now)) {
+				// Slow start or the worker reports a backlog for this type
+				if (full == null) {
+					full = selected;
+				}
+			} else {
 				available = selected.connectionPool.available();
+				selected.lastAvailability = available;
 				if (available == AvailabilityType.AVAILABLE) {
 					return selected;
 				} else if (available == AvailabilityType.FULL && full == null) {
@@ -348,6 +412,14 @@ public class LoadBalancerHandler implements ProxyClient {
 		return null;
 	}
 
+	static String getQueryParameter(HttpServerExchange exchange, String name) {
+		Deque<String> values = exchange.getQueryParameters().get(name);
+		if (values == null) {
+			return null;
+		}
+		return values.peekLast();
+	}
+
 	protected Host findStickyHost(HttpServerExchange exchange) {
 		Map<String, Cookie> cookies = exchange.getRequestCookies();
 		for (String cookieName : sessionCookieNames) {
@@ -363,7 +435,7 @@ public class LoadBalancerHandler implements ProxyClient {
 				if (index != -1) {
 					route = route.substring(0, index);
 				}
-				return routes.get(route);
+				return registry.snapshot().getByRoute(route);
 			}
 		}
 		return null;
@@ -374,6 +446,53 @@ public class LoadBalancerHandler implements ProxyClient {
 		final ProxyConnectionPool connectionPool;
 		final URI uri;
 		final String jvmRoute, type, ami, instanceId;
+		/**
+		 * Requests proxied to this host that have not completed yet. Striped
+		 * so the IO threads do not contend on a single counter.
+		 */
+		final LongAdder inFlight = new LongAdder();
+		/**
+		 * Estimated nanoseconds of work queued on this host, maintained by
+		 * cost aware selectors.
+		 */
+		final LongAdder outstandingWork = new LongAdder();
+		/**
+		 * Latency per request type, the last slot holds requests without a
+		 * known type.
+		 */
+		final LatencyStats[] latency;
+		/**
+		 * Pool availability seen by the last selection. The pool can only be
+		 * queried from a proxy IO thread so this is what metrics report.
+		 */
+		volatile AvailabilityType lastAvailability = AvailabilityType.AVAILABLE;
+		/**
+		 * Set once the host is removed, it then only finishes in flight
+		 * requests.
+		 */
+		volatile boolean draining;
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		private volatile Runnable onClosed;
+		/**
+		 * Set after too many failed health checks, cleared when a check passes
+		 */
+		volatile boolean ejected;
+		private final AtomicInteger healthCheckFailures = new AtomicInteger(0);
+		/**
+		 * System.nanoTime() when the host was added or re-admitted, 0 once the
+		 * slow start is over
+		 */
+		private volatile long admittedAt = System.nanoTime();
+		/**
+		 * Latest load snapshot pushed by the worker, null until one arrives
+		 */
+		volatile TelemetryFrame telemetry;
+		/**
+		 * X-Worker-Load of the last response per request type as double bits,
+		 * and System.nanoTime() when it arrived
+		 */
+		private final AtomicLongArray workerLoad = new AtomicLongArray(RequestType.values().length + 1);
+		private final AtomicLongArray workerLoadAt = new AtomicLongArray(RequestType.values().length + 1);
 
 		private Host(String jvmRoute, InetSocketAddress bindAddress, URI uri, OptionMap options) {
 			this(jvmRoute, bindAddress, uri, null, null, null, options);
@@ -387,6 +506,10 @@ public class LoadBalancerHandler implements ProxyClient {
 			this.ami = ami;
 			this.type = type;
 			this.instanceId = instanceId;
+			this.latency = new LatencyStats[RequestType.values().length + 1];
+			for (int i = 0; i < latency.length; i++) {
+				latency[i] = new LatencyStats();
+			}
 		}
 
 		@Override
@@ -426,6 +549,125 @@ public class LoadBalancerHandler implements ProxyClient {
 		public int getCurrentConnections() {
 			return connectionPool.getOpenConnections();
 		}
+
+		public long getInFlight() {
+			return inFlight.sum();
+		}
+
+		public long getOutstandingWork() {
+			return outstandingWork.sum();
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getInstanceId() {
+			return instanceId;
+		}
+
+		void drain(Runnable onClosed) {
+			this.onClosed = onClosed;
+			draining = true;
+			closeIfDrained();
+		}
+
+		void closeIfDrained() {
+			if (inFlight.sum() == 0) {
+				close();
+			}
+		}
+
+		/**
+		 * Closes the connection pool even if requests are still in flight
+		 */
+		void close() {
+			if (closed.compareAndSet(false, true)) {
+				logger.info("Host " + uri + " closing connection pool, " + inFlight.sum() + " requests in flight");
+				connectionPool.close();
+				Runnable callback = onClosed;
+				if (callback != null) {
+					callback.run();
+				}
+			}
+		}
+
+		/**
+		 * @return whether to send this request to the host. During slow start
+		 *         the share of requests grows linearly with the time since the
+		 *         host was admitted.
+		 */
+		boolean admit(long slowStartNanos) {
+			long since = admittedAt;
+			if (since == 0) {
+				return true;
+			}
+			long elapsed = System.nanoTime() - since;
+			if (elapsed >= slowStartNanos) {
+				admittedAt = 0;
+				return true;
+			}
+			return ThreadLocalRandom.current().nextLong(slowStartNanos) < elapsed;
+		}
+
+		void healthCheckPassed() {
+			healthCheckFailures.set(0);
+			if (ejected) {
+				logger.info("Host " + uri + " passed health check, re-admitting");
+				admittedAt = System.nanoTime();
+				ejected = false;
+			}
+		}
+
+		void healthCheckFailed(int maxFailures) {
+			if (healthCheckFailures.incrementAndGet() >= maxFailures && !ejected) {
+				logger.warn("Host " + uri + " failed " + maxFailures + " health checks, ejecting");
+				ejected = true;
+			}
+		}
+
+		public TelemetryFrame getTelemetry() {
+			return telemetry;
+		}
+
+		void workerLoadReported(RequestType type, double load) {
+			int index = type == null ? workerLoad.length() - 1 : type.ordinal();
+			workerLoad.set(index, Double.doubleToRawLongBits(load));
+			workerLoadAt.set(index, System.nanoTime());
+		}
+
+		/**
+		 * @return the load the worker last reported for the type, NaN if it
+		 *         has not reported one recently
+		 */
+		public double getWorkerLoad(RequestType type, long now) {
+			int index = type == null ? workerLoad.length() - 1 : type.ordinal();
+			long at = workerLoadAt.get(index);
+			if (at == 0 || now - at > WORKER_LOAD_TTL) {
+				return Double.NaN;
+			}
+			return Double.longBitsToDouble(workerLoad.get(index));
+		}
+
+		boolean isOverloaded(RequestType type, long now) {
+			return getWorkerLoad(type, now) >= WORKER_OVERLOAD;
+		}
+
+		public boolean isEjected() {
+			return ejected;
+		}
+
+		public boolean isDraining() {
+			return draining;
+		}
+
+		public AvailabilityType getLastAvailability() {
+			return lastAvailability;
+		}
+
+		public LatencyStats getLatency(RequestType requestType) {
+			return latency[requestType == null ? latency.length - 1 : requestType.ordinal()];
+		}
 	}
 
 	private static class ExclusiveConnectionHolder {
@@ -439,6 +681,30 @@ public class LoadBalancerHandler implements ProxyClient {
 		int selectHost(Host[] availableHosts);
 
 		int selectHost(Host[] availableHosts, String requestType);
+
+		default int selectHost(Host[] availableHosts, String requestType, String argument) {
+			return selectHost(availableHosts, requestType);
+		}
+
+		/**
+		 * @return index into snapshot.getHosts()
+		 */
+		default int selectHost(HostRegistry.Snapshot snapshot, String requestType, String argument) {
+			return selectHost(snapshot.hosts, requestType, argument);
+		}
+
+		/**
+		 * Called on the IO thread once a request has been assigned to a host.
+		 */
+		default void requestStarted(Host host, HttpServerExchange exchange) {
+		}
+
+		/**
+		 * Called when a request assigned to a host completes. The latency is -1
+		 * when the attempt was abandoned or the start time was not recorded.
+		 */
+		default void requestFinished(Host host, HttpServerExchange exchange, long latencyNanos) {
+		}
 	}
 
 }
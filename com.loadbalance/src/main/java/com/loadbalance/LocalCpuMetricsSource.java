@@ -0,0 +1,37 @@
+package com.loadbalance;
+
+import com.loadbalance.AutoScaleConfig.LaunchConfig;
+
+/**
+ * Averages the /cpu answers of the servers in the pool, for running without
+ * CloudWatch.
+ */
+public class LocalCpuMetricsSource implements MetricsSource {
+
+	CpuSampler cpuSampler;
+
+	public LocalCpuMetricsSource(CpuSampler cpuSampler) {
+		this.cpuSampler = cpuSampler;
+	}
+
+	@Override
+	public double average(LaunchConfig config, String metric, String statistic, int periodSeconds) {
+		CpuSampler.Samples samples = cpuSampler
+				.sample(config.server_pool.subList(0, Math.min(config.current, config.server_pool.size())));
+		if (!samples.getRefused().isEmpty()) {
+			LoadBalancer.logger.warn("Connecting to " + samples.getRefused() + " failed, counting them as saturated");
+		}
+		if (!samples.getMissing().isEmpty()) {
+			LoadBalancer.logger.warn("No cpu info from " + samples.getMissing());
+		}
+		double totalCPU = samples.average();
+		if (Double.isNaN(totalCPU)) {
+			LoadBalancer.logger.info("No instance has cpu info");
+			return Double.NaN;
+		}
+		LoadBalancer.logger.info("CPU " + totalCPU + " from "
+				+ (samples.getValues().size() + samples.getRefused().size()) + " instances");
+		return totalCPU;
+	}
+
+}
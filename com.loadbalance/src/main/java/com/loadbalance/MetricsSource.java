@@ -0,0 +1,15 @@
+package com.loadbalance;
+
+import com.loadbalance.AutoScaleConfig.LaunchConfig;
+
+/**
+ * Where the scaling controller gets the metric a policy is evaluated on.
+ */
+public interface MetricsSource {
+
+	/**
+	 * @return the metric averaged over the instances of the launch config,
+	 *         NaN if no instance reported a value
+	 */
+	double average(LaunchConfig config, String metric, String statistic, int periodSeconds);
+}
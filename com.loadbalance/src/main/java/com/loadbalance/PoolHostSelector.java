@@ -0,0 +1,111 @@
+package com.loadbalance;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.loadbalance.LoadBalancerHandler.Host;
+import com.loadbalance.LoadBalancerHandler.HostSelector;
+
+import io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType;
+
+/**
+ * Routes each request type to pools of hosts keyed by instance type, as
+ * configured by the routing table of the scale config. Pools are the per type
+ * index arrays of the host registry snapshot, so picking a host is a lookup
+ * plus a round robin or least loaded choice within the pool. Later pools in a
+ * route are used only when the earlier ones are saturated.
+ */
+class PoolHostSelector implements HostSelector {
+
+	private static final String LEAST_OUTSTANDING = "leastoutstanding";
+
+	private final Map<String, String[]> routes;
+	private final Map<String, AtomicInteger> cursors;
+	private final AtomicInteger defaultCursor;
+	private final boolean leastOutstanding;
+	private final int saturation;
+
+	/**
+	 * @param routing
+	 *            request type to instance types, in order of preference
+	 * @param poolPolicy
+	 *            roundrobin or leastoutstanding
+	 * @param saturation
+	 *            in flight requests at which a host counts as saturated
+	 */
+	public PoolHostSelector(Map<String, List<String>> routing, String poolPolicy, int saturation) {
+		routes = new HashMap<String, String[]>();
+		cursors = new HashMap<String, AtomicInteger>();
+		for (Map.Entry<String, List<String>> entry : routing.entrySet()) {
+			String[] pools = entry.getValue().toArray(new String[entry.getValue().size()]);
+			routes.put(entry.getKey(), pools);
+			for (String pool : pools) {
+				if (!cursors.containsKey(pool)) {
+					cursors.put(pool, new AtomicInteger(0));
+				}
+			}
+		}
+		defaultCursor = new AtomicInteger(0);
+		leastOutstanding = LEAST_OUTSTANDING.equals(poolPolicy);
+		this.saturation = saturation;
+	}
+
+	public int selectHost(Host[] availableHosts) {
+		return selectHost(availableHosts, null);
+	}
+
+	public int selectHost(Host[] availableHosts, String requestType) {
+		return (defaultCursor.incrementAndGet() & Integer.MAX_VALUE) % availableHosts.length;
+	}
+
+	@Override
+	public int selectHost(HostRegistry.Snapshot snapshot, String requestType, String argument) {
+		Host[] hosts = snapshot.hosts;
+		String[] pools = requestType == null ? null : routes.get(requestType);
+		if (pools == null) {
+			return selectHost(hosts, requestType);
+		}
+		int fallback = -1;
+		for (String pool : pools) {
+			int[] indices = snapshot.indicesOfType(pool);
+			if (indices.length == 0) {
+				continue;
+			}
+			int host = leastOutstanding ? leastLoaded(hosts, indices) : roundRobin(pool, indices);
+			if (!isSaturated(hosts[host])) {
+				return host;
+			}
+			if (fallback == -1) {
+				fallback = host;
+			}
+		}
+		// Every pool is saturated, stay on the preferred one
+		return fallback == -1 ? selectHost(hosts, requestType) : fallback;
+	}
+
+	private int roundRobin(String pool, int[] indices) {
+		return indices[(cursors.get(pool).incrementAndGet() & Integer.MAX_VALUE) % indices.length];
+	}
+
+	private static int leastLoaded(Host[] hosts, int[] indices) {
+		if (indices.length == 1) {
+			return indices[0];
+		}
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		int first = rand.nextInt(indices.length);
+		int second = (first + 1 + rand.nextInt(indices.length - 1)) % indices.length;
+		if (hosts[indices[second]].getInFlight() < hosts[indices[first]].getInFlight()) {
+			return indices[second];
+		}
+		return indices[first];
+	}
+
+	private boolean isSaturated(Host host) {
+		AvailabilityType available = host.getLastAvailability();
+		return host.getInFlight() >= saturation || available == AvailabilityType.FULL
+				|| available == AvailabilityType.FULL_QUEUE || available == AvailabilityType.PROBLEM;
+	}
+}
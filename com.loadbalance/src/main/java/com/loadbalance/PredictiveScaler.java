@@ -0,0 +1,152 @@
+package com.loadbalance;
+
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.loadbalance.AutoScaleConfig.LaunchConfig;
+import com.loadbalance.LoadBalancerHandler.Host;
+
+/**
+ * Forecasts the arrival rate of every request type with Holt's linear
+ * exponential smoothing and turns it into the number of instances each launch
+ * config needs at the end of the forecast horizon, using the latencies
+ * measured per instance type and request type.
+ */
+public class PredictiveScaler {
+
+	private static final double ALPHA = 0.5;
+	private static final double BETA = 0.3;
+	/**
+	 * Latency quantile taken as the service time of hosts whose worker does
+	 * not report one, low enough to leave out most of the queueing
+	 */
+	private static final double SERVICE_QUANTILE = 0.1;
+
+	private final LoadBalancerHandler handler;
+	private final AutoScaleConfig autoScale;
+	private final RequestType[] types = RequestType.values();
+	private final long[] lastArrivals = new long[types.length];
+	private final double[] level = new double[types.length];
+	/**
+	 * Change of the rate per second, so it does not depend on how often the
+	 * scaling controller samples
+	 */
+	private final double[] trend = new double[types.length];
+	private long lastSample;
+	private boolean initialized;
+	private Logger logger;
+
+	public PredictiveScaler(LoadBalancerHandler handler, AutoScaleConfig autoScale) {
+		logger = LoggerFactory.getLogger(PredictiveScaler.class);
+		this.handler = handler;
+		this.autoScale = autoScale;
+	}
+
+	/**
+	 * Folds the arrivals since the last call into the forecast. Called on a
+	 * fixed interval by the scaling controller.
+	 */
+	public synchronized void sample() {
+		long now = System.nanoTime();
+		double seconds = (now - lastSample) / 1e9;
+		for (int i = 0; i < types.length; i++) {
+			long arrivals = handler.getArrivals(types[i]);
+			if (initialized && seconds > 0) {
+				observe(types[i], (arrivals - lastArrivals[i]) / seconds, seconds);
+			}
+			lastArrivals[i] = arrivals;
+		}
+		lastSample = now;
+		initialized = true;
+	}
+
+	/**
+	 * Folds the rate measured over the last seconds into the forecast
+	 */
+	synchronized void observe(RequestType type, double rate, double seconds) {
+		int i = type.ordinal();
+		double previousLevel = level[i];
+		level[i] = ALPHA * rate + (1 - ALPHA) * (level[i] + seconds * trend[i]);
+		trend[i] = BETA * (level[i] - previousLevel) / seconds + (1 - BETA) * trend[i];
+	}
+
+	/**
+	 * @return forecast requests per second of the type horizon seconds ahead
+	 */
+	public synchronized double forecast(RequestType type, int horizonSeconds) {
+		return Math.max(0, level[type.ordinal()] + horizonSeconds * trend[type.ordinal()]);
+	}
+
+	/**
+	 * @return instances the launch config needs to serve the forecast load
+	 *         at the target utilization
+	 */
+	public int requiredInstances(LaunchConfig config, int horizonSeconds) {
+		Host[] hosts = handler.getHosts();
+		double busySlots = 0;
+		for (RequestType type : types) {
+			double share = share(config, type);
+			if (share == 0) {
+				continue;
+			}
+			double serviceTime = serviceTimeSeconds(hosts, config.instanceType, type);
+			if (Double.isNaN(serviceTime)) {
+				continue;
+			}
+			busySlots += forecast(type, horizonSeconds) * share * serviceTime;
+		}
+		int required = (int) Math.ceil(busySlots / (autoScale.slots(config) * config.targetUtilization));
+		logger.debug(config.instanceType + " needs " + required + " instances for " + busySlots + " busy slots");
+		return required;
+	}
+
+	/**
+	 * @return fraction of the requests of a type that go to the launch
+	 *         config. With a routing table the preferred pool takes all of
+	 *         them, otherwise they spread over all instances.
+	 */
+	private double share(LaunchConfig config, RequestType type) {
+		Map<String, List<String>> routing = autoScale.routing;
+		if (routing != null) {
+			List<String> pools = routing.get(type.name);
+			if (pools != null && !pools.isEmpty()) {
+				return pools.get(0).equals(config.instanceType) ? 1 : 0;
+			}
+		}
+		int total = 0;
+		for (LaunchConfig launch : autoScale.launchConfig) {
+			total += launch.current;
+		}
+		return total == 0 ? 0 : (double) config.current / total;
+	}
+
+	/**
+	 * @return mean service time of the hosts of the instance type, NaN if
+	 *         none has served the request type yet. End to end latency would
+	 *         include queueing, which grows with load and would feed back
+	 *         into ever larger forecasts, so the service time the worker
+	 *         reports is used, or a low latency quantile where it reports
+	 *         none.
+	 */
+	private static double serviceTimeSeconds(Host[] hosts, String instanceType, RequestType type) {
+		double total = 0;
+		int count = 0;
+		for (Host host : hosts) {
+			if (instanceType.equals(host.getType())) {
+				LatencyStats stats = host.getLatency(type);
+				double service = stats.getServiceEwma();
+				if (Double.isNaN(service) && stats.getHistogram().getCount() > 0) {
+					service = stats.getHistogram().quantile(SERVICE_QUANTILE) * 1000.0;
+				}
+				if (!Double.isNaN(service)) {
+					total += service;
+					count++;
+				}
+			}
+		}
+		return count == 0 ? Double.NaN : total / count / 1e9;
+	}
+}
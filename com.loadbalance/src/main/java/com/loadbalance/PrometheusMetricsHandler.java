@@ -0,0 +1,253 @@
+package com.loadbalance;
+
+import com.loadbalance.AutoScaleConfig.LaunchConfig;
+import com.loadbalance.LoadBalancerHandler.Host;
+import com.server.IntResultCache;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.proxy.ProxyConnectionPool.AvailabilityType;
+import io.undertow.util.Headers;
+
+/**
+ * Exports load balancer and autoscaler state in the Prometheus text format.
+ * Everything is read from counters the proxy already maintains, so a scrape
+ * never touches the IO threads.
+ */
+public class PrometheusMetricsHandler implements HttpHandler {
+
+	/**
+	 * Histogram bucket bounds exported to Prometheus, in seconds
+	 */
+	private static final double[] BOUNDS = { 0.001, 0.005, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+	private static final String[] BOUND_LABELS = new String[BOUNDS.length];
+	/**
+	 * Last LatencyHistogram bucket that fits under each bound
+	 */
+	private static final int[] BOUND_BUCKETS = new int[BOUNDS.length];
+
+	static {
+		for (int i = 0; i < BOUNDS.length; i++) {
+			BOUND_LABELS[i] = String.valueOf(BOUNDS[i]);
+			long micros = (long) (BOUNDS[i] * 1000000);
+			int bucket = 0;
+			while (bucket + 1 < LatencyHistogram.BUCKETS && LatencyHistogram.upperBound(bucket + 1) <= micros) {
+				bucket++;
+			}
+			BOUND_BUCKETS[i] = bucket;
+		}
+	}
+
+	private final LoadBalancerHandler loadBalancer;
+	private final AutoScaleConfig config;
+	private final StringBuilder builder = new StringBuilder(64 * 1024);
+
+	public PrometheusMetricsHandler(LoadBalancerHandler loadBalancer, AutoScaleConfig config) {
+		this.loadBalancer = loadBalancer;
+		this.config = config;
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		if (exchange.isInIoThread()) {
+			exchange.dispatch(this);
+			return;
+		}
+		String body;
+		synchronized (builder) {
+			builder.setLength(0);
+			render(builder);
+			body = builder.toString();
+		}
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain; version=0.0.4");
+		exchange.getResponseSender().send(body);
+	}
+
+	private void render(StringBuilder out) {
+		Host[] hosts = loadBalancer.getHosts();
+		RequestType[] types = RequestType.values();
+
+		header(out, "lb_host_open_connections", "gauge", "Open connections in the host connection pool");
+		for (Host host : hosts) {
+			sample(out, "lb_host_open_connections", host).append(host.getCurrentConnections()).append('\n');
+		}
+
+		header(out, "lb_host_in_flight", "gauge", "Requests proxied to the host that have not completed");
+		for (Host host : hosts) {
+			sample(out, "lb_host_in_flight", host).append(host.getInFlight()).append('\n');
+		}
+
+		header(out, "lb_host_availability", "gauge", "Connection pool availability seen by the last selection");
+		for (Host host : hosts) {
+			AvailabilityType current = host.getLastAvailability();
+			for (AvailabilityType state : AvailabilityType.values()) {
+				labels(out.append("lb_host_availability"), host).append(",state=\"").append(state.name())
+						.append("\"} ").append(state == current ? 1 : 0).append('\n');
+			}
+		}
+
+		header(out, "lb_worker_cpu", "gauge", "Process cpu percent last pushed by the worker");
+		for (Host host : hosts) {
+			TelemetryFrame frame = host.getTelemetry();
+			if (frame != null && frame.cpu != null) {
+				sample(out, "lb_worker_cpu", host).append(frame.cpu).append('\n');
+			}
+		}
+
+		header(out, "lb_worker_queue", "gauge", "Jobs waiting for a worker thread last pushed by the worker");
+		for (Host host : hosts) {
+			TelemetryFrame frame = host.getTelemetry();
+			if (frame != null) {
+				sample(out, "lb_worker_queue", host).append(frame.queue).append('\n');
+			}
+		}
+
+		header(out, "lb_worker_load", "gauge", "Lane load the worker last reported by request type");
+		long now = System.nanoTime();
+		for (Host host : hosts) {
+			for (RequestType type : types) {
+				double load = host.getWorkerLoad(type, now);
+				if (!Double.isNaN(load)) {
+					labels(out.append("lb_worker_load"), host).append(",type=\"").append(type.name).append("\"} ")
+							.append(load).append('\n');
+				}
+			}
+		}
+
+		header(out, "lb_requests_total", "counter", "Completed requests by request type");
+		for (Host host : hosts) {
+			for (RequestType type : types) {
+				labels(out.append("lb_requests_total"), host).append(",type=\"").append(type.name).append("\"} ")
+						.append(host.getLatency(type).getHistogram().getCount()).append('\n');
+			}
+		}
+
+		header(out, "lb_request_duration_seconds", "histogram", "Request latency by request type");
+		for (Host host : hosts) {
+			for (RequestType type : types) {
+				LatencyHistogram histogram = host.getLatency(type).getHistogram();
+				long cumulative = 0;
+				int bucket = 0;
+				for (int i = 0; i < BOUNDS.length; i++) {
+					for (; bucket <= BOUND_BUCKETS[i]; bucket++) {
+						cumulative += histogram.getBucketCount(bucket);
+					}
+					histogramLabels(out, "lb_request_duration_seconds_bucket", host, type).append(",le=\"")
+							.append(BOUND_LABELS[i]).append("\"} ").append(cumulative).append('\n');
+				}
+				long count = histogram.getCount();
+				histogramLabels(out, "lb_request_duration_seconds_bucket", host, type).append(",le=\"+Inf\"} ")
+						.append(count).append('\n');
+				histogramLabels(out, "lb_request_duration_seconds_sum", host, type).append("} ")
+						.append(histogram.getSum() / 1000000.0).append('\n');
+				histogramLabels(out, "lb_request_duration_seconds_count", host, type).append("} ").append(count)
+						.append('\n');
+			}
+		}
+
+		if (config != null && config.admissionController != null) {
+			admission(out, config.admissionController, types);
+		}
+
+		if (config != null && config.responseCacheHandler != null) {
+			header(out, "lb_response_cache_total", "counter", "Response cache lookups by request type and outcome");
+			for (RequestType type : types) {
+				IntResultCache cache = config.responseCacheHandler.getCache(type);
+				if (cache != null) {
+					out.append("lb_response_cache_total{type=\"").append(type.name).append("\",outcome=\"hit\"} ")
+							.append(cache.hits.sum()).append('\n');
+					out.append("lb_response_cache_total{type=\"").append(type.name).append("\",outcome=\"miss\"} ")
+							.append(cache.misses.sum()).append('\n');
+				}
+			}
+		}
+
+		if (config == null || config.launchConfig == null) {
+			return;
+		}
+		header(out, "lb_autoscale_instances", "gauge", "Instances per launch config by kind");
+		for (int i = 0; i < config.launchConfig.size(); i++) {
+			LaunchConfig launch = config.launchConfig.get(i);
+			scaleSample(out, i, launch, "current").append(launch.current).append('\n');
+			scaleSample(out, i, launch, "desired").append(launch.desired).append('\n');
+			scaleSample(out, i, launch, "min").append(launch.min).append('\n');
+			scaleSample(out, i, launch, "max").append(launch.max).append('\n');
+			scaleSample(out, i, launch, "warm_pool").append(launch.warmPool).append('\n');
+		}
+		if (config.lifecycle != null) {
+			header(out, "lb_autoscale_lifecycle_instances", "gauge", "Instances per launch config by lifecycle state");
+			for (int i = 0; i < config.launchConfig.size(); i++) {
+				LaunchConfig launch = config.launchConfig.get(i);
+				for (InstanceLifecycle.State state : InstanceLifecycle.State.values()) {
+					out.append("lb_autoscale_lifecycle_instances{launch_config=\"").append(i)
+							.append("\",instance_type=\"").append(launch.instanceType).append("\",state=\"")
+							.append(state.name().toLowerCase()).append("\"} ")
+							.append(config.lifecycle.count(i, state)).append('\n');
+				}
+			}
+		}
+		header(out, "lb_autoscale_scaling_operation", "gauge", "1 while a scaling operation is in progress");
+		for (int i = 0; i < config.launchConfig.size(); i++) {
+			LaunchConfig launch = config.launchConfig.get(i);
+			out.append("lb_autoscale_scaling_operation{launch_config=\"").append(i).append("\",instance_type=\"")
+					.append(launch.instanceType).append("\"} ")
+					.append(launch.scalingOperation != null && launch.scalingOperation.get() ? 1 : 0).append('\n');
+		}
+	}
+
+	private static void admission(StringBuilder out, AdmissionController controller, RequestType[] types) {
+		header(out, "lb_admission_running", "gauge", "Admitted requests in flight by request type");
+		for (RequestType type : types) {
+			AdmissionController.Lane lane = controller.getLane(type);
+			if (lane != null) {
+				out.append("lb_admission_running{type=\"").append(type.name).append("\"} ").append(lane.getRunning())
+						.append('\n');
+			}
+		}
+		header(out, "lb_admission_queued", "gauge", "Requests waiting for admission by request type");
+		for (RequestType type : types) {
+			AdmissionController.Lane lane = controller.getLane(type);
+			if (lane != null) {
+				out.append("lb_admission_queued{type=\"").append(type.name).append("\"} ").append(lane.getQueued())
+						.append('\n');
+			}
+		}
+		header(out, "lb_admission_total", "counter", "Admission decisions by request type and outcome");
+		for (RequestType type : types) {
+			AdmissionController.Lane lane = controller.getLane(type);
+			if (lane != null) {
+				admissionSample(out, type, "admitted").append(lane.admitted.sum()).append('\n');
+				admissionSample(out, type, "rejected").append(lane.rejected.sum()).append('\n');
+				admissionSample(out, type, "expired").append(lane.expired.sum()).append('\n');
+			}
+		}
+	}
+
+	private static StringBuilder admissionSample(StringBuilder out, RequestType type, String outcome) {
+		return out.append("lb_admission_total{type=\"").append(type.name).append("\",outcome=\"").append(outcome)
+				.append("\"} ");
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static StringBuilder labels(StringBuilder out, Host host) {
+		return out.append("{host=\"").append(host.getUri()).append("\",instance_type=\"")
+				.append(host.getType() == null ? "unknown" : host.getType()).append('"');
+	}
+
+	private static StringBuilder sample(StringBuilder out, String name, Host host) {
+		return labels(out.append(name), host).append("} ");
+	}
+
+	private static StringBuilder histogramLabels(StringBuilder out, String name, Host host, RequestType type) {
+		return labels(out.append(name), host).append(",type=\"").append(type.name).append('"');
+	}
+
+	private static StringBuilder scaleSample(StringBuilder out, int index, LaunchConfig launch, String kind) {
+		return out.append("lb_autoscale_instances{launch_config=\"").append(index).append("\",instance_type=\"")
+				.append(launch.instanceType).append("\",kind=\"").append(kind).append("\"} ");
+	}
+}
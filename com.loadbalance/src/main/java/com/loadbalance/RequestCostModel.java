@@ -0,0 +1,70 @@
+package com.loadbalance;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates service time of a request on a given instance type as
+ * nanoseconds per work unit, calibrated with an EWMA of measured latencies.
+ */
+class RequestCostModel {
+
+	private static final String UNKNOWN_INSTANCE = "unknown";
+	private static final double ALPHA = 0.1;
+	/**
+	 * Starting point in nanoseconds per work unit until latencies come in.
+	 */
+	private static final double[] SEED = new double[RequestType.values().length + 1];
+
+	static {
+		SEED[RequestType.COMPUTE_PRIME.ordinal()] = 20;
+		SEED[RequestType.MEMORY_KILLER.ordinal()] = 50 * 1000 * 1000;
+		SEED[RequestType.TELL_ME_NOW.ordinal()] = 1000 * 1000;
+		SEED[RequestType.WISDOM_418.ordinal()] = 3000L * 1000 * 1000;
+		SEED[RequestType.values().length] = 1000 * 1000;
+	}
+
+	private final ConcurrentHashMap<String, AtomicLongArray> coefficients = new ConcurrentHashMap<String, AtomicLongArray>();
+
+	private AtomicLongArray coefficients(String instanceType) {
+		if (instanceType == null) {
+			instanceType = UNKNOWN_INSTANCE;
+		}
+		AtomicLongArray values = coefficients.get(instanceType);
+		if (values == null) {
+			values = new AtomicLongArray(SEED.length);
+			for (int i = 0; i < SEED.length; i++) {
+				values.set(i, Double.doubleToRawLongBits(SEED[i]));
+			}
+			AtomicLongArray existing = coefficients.putIfAbsent(instanceType, values);
+			if (existing != null) {
+				values = existing;
+			}
+		}
+		return values;
+	}
+
+	private static int index(RequestType requestType) {
+		return requestType == null ? SEED.length - 1 : requestType.ordinal();
+	}
+
+	/**
+	 * @return estimated service time in nanoseconds
+	 */
+	public long estimate(String instanceType, RequestType requestType, double work) {
+		double perUnit = Double.longBitsToDouble(coefficients(instanceType).get(index(requestType)));
+		return (long) (perUnit * work);
+	}
+
+	public void record(String instanceType, RequestType requestType, double work, long latencyNanos) {
+		AtomicLongArray values = coefficients(instanceType);
+		int i = index(requestType);
+		double sample = latencyNanos / work;
+		long current, next;
+		do {
+			current = values.get(i);
+			double old = Double.longBitsToDouble(current);
+			next = Double.doubleToRawLongBits(old + ALPHA * (sample - old));
+		} while (!values.compareAndSet(i, current, next));
+	}
+}
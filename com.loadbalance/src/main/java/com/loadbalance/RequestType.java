@@ -0,0 +1,51 @@
+package com.loadbalance;
+
+/**
+ * The job types served by the workers, with a relative measure of the work
+ * each request carries.
+ */
+enum RequestType {
+	COMPUTE_PRIME("countprimes"), MEMORY_KILLER("memorykiller"), TELL_ME_NOW("tellmenow"), WISDOM_418("418wisdom");
+
+	final String name;
+
+	private RequestType(String name) {
+		this.name = name;
+	}
+
+	public static RequestType fromString(String requestType) {
+		if (requestType == null) {
+			return null;
+		}
+		switch (requestType) {
+		case "countprimes":
+			return COMPUTE_PRIME;
+		case "memorykiller":
+			return MEMORY_KILLER;
+		case "tellmenow":
+			return TELL_ME_NOW;
+		case "418wisdom":
+			return WISDOM_418;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Work units of a request relative to other requests of the same type.
+	 * count_primes_job trial divides every odd number below N up to its
+	 * square root so it grows as N^1.5, the other jobs do a fixed amount of
+	 * work.
+	 */
+	public double work(String argument) {
+		if (this != COMPUTE_PRIME || argument == null) {
+			return 1;
+		}
+		try {
+			double n = Integer.parseInt(argument);
+			return Math.max(1, n * Math.sqrt(n));
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+}
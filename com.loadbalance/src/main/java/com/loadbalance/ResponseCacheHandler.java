@@ -0,0 +1,215 @@
+package com.loadbalance;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.xnio.IoUtils;
+import org.xnio.channels.StreamSourceChannel;
+import org.xnio.conduits.AbstractStreamSinkConduit;
+import org.xnio.conduits.ConduitWritableByteChannel;
+import org.xnio.conduits.StreamSinkConduit;
+
+import com.server.IntResultCache;
+
+import io.undertow.server.ConduitWrapper;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ConduitFactory;
+import io.undertow.util.StatusCodes;
+
+/**
+ * Answers requests whose result a worker already sent for the same argument,
+ * so a repeated request never reaches a worker. The response body of a miss
+ * is copied as it is proxied, a 200 ending in a tab and the request's id is
+ * cached without the id, which is appended again for every hit. Only types
+ * whose result depends on nothing but their integer argument can be cached.
+ */
+public class ResponseCacheHandler implements HttpHandler {
+
+	private static final String SEPARATOR = "\t";
+	/**
+	 * Longer responses are not cached
+	 */
+	private static final int MAX_CAPTURED = 4096;
+
+	private final HttpHandler next;
+	/**
+	 * Indexed by RequestType ordinal, null where the type is not cached
+	 */
+	private final IntResultCache[] caches = new IntResultCache[RequestType.values().length];
+
+	/**
+	 * Body bytes written to the client so far
+	 */
+	private static final class Capture {
+		byte[] bytes = new byte[256];
+		int length;
+		boolean overflow;
+
+		void add(ByteBuffer buffer, int from, int to) {
+			int count = to - from;
+			if (overflow || count <= 0) {
+				return;
+			}
+			if (length + count > MAX_CAPTURED) {
+				overflow = true;
+				return;
+			}
+			if (length + count > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.min(MAX_CAPTURED, Math.max(bytes.length * 2, length + count)));
+			}
+			for (int i = from; i < to; i++) {
+				bytes[length++] = buffer.get(i);
+			}
+		}
+	}
+
+	private static final class CapturingConduit extends AbstractStreamSinkConduit<StreamSinkConduit> {
+		private final Capture capture;
+
+		CapturingConduit(StreamSinkConduit next, Capture capture) {
+			super(next);
+			this.capture = capture;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int position = src.position();
+			int written = next.write(src);
+			capture.add(src, position, src.position());
+			return written;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offs, int len) throws IOException {
+			int[] positions = positions(srcs, offs, len);
+			long written = next.write(srcs, offs, len);
+			capture(srcs, offs, len, positions);
+			return written;
+		}
+
+		@Override
+		public int writeFinal(ByteBuffer src) throws IOException {
+			int position = src.position();
+			int written = next.writeFinal(src);
+			capture.add(src, position, src.position());
+			return written;
+		}
+
+		@Override
+		public long writeFinal(ByteBuffer[] srcs, int offs, int len) throws IOException {
+			int[] positions = positions(srcs, offs, len);
+			long written = next.writeFinal(srcs, offs, len);
+			capture(srcs, offs, len, positions);
+			return written;
+		}
+
+		@Override
+		public long transferFrom(FileChannel src, long position, long count) throws IOException {
+			capture.overflow = true;
+			return next.transferFrom(src, position, count);
+		}
+
+		@Override
+		public long transferFrom(StreamSourceChannel source, long count, ByteBuffer throughBuffer)
+				throws IOException {
+			// Through write so the bytes are seen
+			return IoUtils.transfer(source, count, throughBuffer, new ConduitWritableByteChannel(this));
+		}
+
+		private static int[] positions(ByteBuffer[] srcs, int offs, int len) {
+			int[] positions = new int[len];
+			for (int i = 0; i < len; i++) {
+				positions[i] = srcs[offs + i].position();
+			}
+			return positions;
+		}
+
+		private void capture(ByteBuffer[] srcs, int offs, int len, int[] positions) {
+			for (int i = 0; i < len; i++) {
+				capture.add(srcs[offs + i], positions[i], srcs[offs + i].position());
+			}
+		}
+	}
+
+	/**
+	 * @param capacities
+	 *            results kept per request type, types not in the map are not
+	 *            cached
+	 */
+	public ResponseCacheHandler(HttpHandler next, Map<String, Integer> capacities) {
+		this.next = next;
+		for (Map.Entry<String, Integer> entry : capacities.entrySet()) {
+			RequestType type = RequestType.fromString(entry.getKey());
+			if (type == null) {
+				throw new IllegalArgumentException("Unknown request type " + entry.getKey());
+			}
+			if (type == RequestType.MEMORY_KILLER) {
+				throw new IllegalArgumentException("Responses of " + entry.getKey() + " can not be cached");
+			}
+			if (entry.getValue() > 0) {
+				caches[type.ordinal()] = new IntResultCache(entry.getValue());
+			}
+		}
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		RequestType type = RequestType.fromString(LoadBalancerHandler.getQueryParameter(exchange, "type"));
+		final IntResultCache cache = type == null ? null : caches[type.ordinal()];
+		final String id = LoadBalancerHandler.getQueryParameter(exchange, "id");
+		String argument = LoadBalancerHandler.getQueryParameter(exchange, "arg");
+		if (cache == null || id == null || argument == null) {
+			next.handleRequest(exchange);
+			return;
+		}
+		final int x;
+		try {
+			x = Integer.parseInt(argument);
+		} catch (NumberFormatException e) {
+			next.handleRequest(exchange);
+			return;
+		}
+		String result = cache.get(x);
+		if (result != null) {
+			exchange.getResponseSender().send(result + SEPARATOR + id);
+			return;
+		}
+		final Capture capture = new Capture();
+		exchange.addResponseWrapper(new ConduitWrapper<StreamSinkConduit>() {
+			@Override
+			public StreamSinkConduit wrap(ConduitFactory<StreamSinkConduit> factory, HttpServerExchange exchange) {
+				return new CapturingConduit(factory.create(), capture);
+			}
+		});
+		exchange.addExchangeCompleteListener(new ExchangeCompletionListener() {
+			@Override
+			public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener) {
+				try {
+					if (exchange.getStatusCode() == StatusCodes.OK && !capture.overflow) {
+						String body = new String(capture.bytes, 0, capture.length, StandardCharsets.UTF_8);
+						String suffix = SEPARATOR + id;
+						if (body.endsWith(suffix)) {
+							cache.put(x, body.substring(0, body.length() - suffix.length()));
+						}
+					}
+				} finally {
+					nextListener.proceed();
+				}
+			}
+		});
+		next.handleRequest(exchange);
+	}
+
+	/**
+	 * @return the cache of the type, null if the type is not cached
+	 */
+	IntResultCache getCache(RequestType type) {
+		return caches[type.ordinal()];
+	}
+}
@@ -0,0 +1,345 @@
+package com.loadbalance;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.loadbalance.AutoScaleConfig.LaunchConfig;
+import com.loadbalance.AutoScaleConfig.Policy_Down;
+import com.loadbalance.AutoScaleConfig.Policy_Up;
+import com.loadbalance.LoadBalancerHandler.Host;
+
+/**
+ * Evaluates the scaling policies of every launch config on one scheduled
+ * thread. Each launch config gets one tick per period in which all of its
+ * policies are combined with the configured operator. Launches and
+ * terminations run in the background so a tick never waits on them.
+ */
+public class ScalingController {
+
+	static final String SCALING_CLOUDWATCH = "aws_cloudwatch";
+	private static final String SCALING_TELEMETRY = "telemetry";
+	private static final String OPERATOR_AND = "AND";
+
+	/**
+	 * Delays that simulate launching and terminating in local mode
+	 */
+	private static final long LOCAL_LAUNCH_DELAY = 25;
+	private static final long LOCAL_TERMINATE_DELAY = 15;
+	/**
+	 * Seconds between arrival rate samples of the predictive scaler
+	 */
+	private static final long PREDICTION_INTERVAL = 10;
+
+	private final AutoScaleConfig autoScale;
+	private final LoadBalancerHandler handler;
+	private final InstanceLifecycle lifecycle;
+	private final MetricsSource cloudwatchSource;
+	private final MetricsSource localSource;
+	private final MetricsSource telemetrySource;
+	private final ScheduledExecutorService scheduler;
+	private final PredictiveScaler predictor;
+	private Logger logger;
+
+	public ScalingController(AutoScaleConfig autoScale, LoadBalancerHandler handler,
+			InstanceLifecycle lifecycle, MetricsSource cloudwatchSource, MetricsSource localSource,
+			MetricsSource telemetrySource) {
+		logger = LoggerFactory.getLogger(ScalingController.class);
+		this.autoScale = autoScale;
+		this.handler = handler;
+		this.lifecycle = lifecycle;
+		this.cloudwatchSource = cloudwatchSource;
+		this.localSource = localSource;
+		this.telemetrySource = telemetrySource;
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		predictor = new PredictiveScaler(handler, autoScale);
+	}
+
+	public void start() {
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				predictor.sample();
+			}
+		}, 0, PREDICTION_INTERVAL, TimeUnit.SECONDS);
+		for (int i = 0; i < autoScale.launchConfig.size(); i++) {
+			final LaunchConfig config = autoScale.launchConfig.get(i);
+			if (!config.scale) {
+				continue;
+			}
+			final int launchConfigId = i;
+			long period = tickPeriod(config);
+			scheduler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						tick(launchConfigId, config);
+					} catch (Exception e) {
+						logger.error("Scaling tick failed for " + config.instanceType, e);
+					}
+				}
+			}, 0, period, TimeUnit.SECONDS);
+			logger.info("Scaling " + config.instanceType + " every " + period + "s");
+		}
+	}
+
+	/**
+	 * @return the shortest policy period of the launch config in seconds
+	 */
+	private static long tickPeriod(LaunchConfig config) {
+		long period = Long.MAX_VALUE;
+		if (config.scalingUpPolicy != null) {
+			for (Policy_Up policy : config.scalingUpPolicy.policies) {
+				period = Math.min(period, Long.parseLong(policy.period));
+			}
+		}
+		if (config.scalingDownPolicy != null) {
+			for (Policy_Down policy : config.scalingDownPolicy.policies) {
+				period = Math.min(period, Long.parseLong(policy.period));
+			}
+		}
+		return period == Long.MAX_VALUE ? 60 : period;
+	}
+
+	private static int maxWarmup(LaunchConfig config) {
+		int warmup = 0;
+		if (config.scalingUpPolicy != null) {
+			for (Policy_Up policy : config.scalingUpPolicy.policies) {
+				warmup = Math.max(warmup, policy.warmup);
+			}
+		}
+		return warmup;
+	}
+
+	private MetricsSource metricsSource(LaunchConfig config) {
+		if (SCALING_CLOUDWATCH.equals(config.scaling)) {
+			return cloudwatchSource;
+		} else if (SCALING_TELEMETRY.equals(config.scaling)) {
+			return telemetrySource;
+		}
+		return localSource;
+	}
+
+	void tick(int launchConfigId, LaunchConfig config) {
+		if (config.scalingOperation.get() || config.current != config.desired) {
+			return;
+		}
+		if (System.nanoTime() < config.warmupUntil) {
+			return;
+		}
+		// Policies sharing a metric and period are answered by one fetch
+		MetricsSource source = new TickMetricsSource(metricsSource(config));
+
+		int required = 0;
+		if (config.predictive) {
+			required = predictor.requiredInstances(config, autoScale.predictionHorizon);
+			if (required > config.current && config.current < config.max) {
+				logger.info("Predicted " + required + " instances needed for " + config.instanceType);
+				scaleOut(launchConfigId, config, Math.min(config.max, required) - config.current, maxWarmup(config));
+				return;
+			}
+		}
+
+		if (config.scalingUpPolicy != null && config.current < config.max) {
+			int increment = 0;
+			int warmup = 0;
+			boolean and = OPERATOR_AND.equalsIgnoreCase(config.scalingUpPolicy.operator);
+			boolean all = !config.scalingUpPolicy.policies.isEmpty();
+			for (Policy_Up policy : config.scalingUpPolicy.policies) {
+				double value = source.average(config, policy.metric, policy.statistic,
+						Integer.parseInt(policy.period));
+				if (!Double.isNaN(value) && value >= policy.lowerThreshold && value <= policy.upperThreshold) {
+					increment = Math.max(increment, policy.instance);
+					warmup = Math.max(warmup, policy.warmup);
+				} else {
+					all = false;
+				}
+			}
+			if (increment > 0 && (!and || all)) {
+				scaleOut(launchConfigId, config, Math.min(config.max - config.current, increment), warmup);
+				return;
+			}
+		}
+
+		if (config.scalingDownPolicy != null && config.current > config.min) {
+			int decrement = 0;
+			boolean and = OPERATOR_AND.equalsIgnoreCase(config.scalingDownPolicy.operator);
+			boolean all = !config.scalingDownPolicy.policies.isEmpty();
+			for (Policy_Down policy : config.scalingDownPolicy.policies) {
+				double value = source.average(config, policy.metric, policy.statistic,
+						Integer.parseInt(policy.period));
+				if (!Double.isNaN(value) && value <= policy.upperThreshold) {
+					decrement = Math.max(decrement, policy.instance);
+				} else {
+					all = false;
+				}
+			}
+			if (decrement > 0 && (!and || all)) {
+				// Do not give back capacity the forecast still needs
+				int floor = Math.max(config.min, required);
+				scaleIn(launchConfigId, config, Math.min(config.current - floor, decrement));
+			}
+		}
+	}
+
+	private void scaleOut(int launchConfigId, final LaunchConfig config, final int increment, int warmup) {
+		config.scalingOperation.set(true);
+		config.warmup = warmup;
+		config.desired += increment;
+		logger.info("Scale Out " + config.instanceType + " Desired " + config.desired + " " + increment);
+		if (autoScale.launchesInstances(config)) {
+			for (int i = 0; i < increment; i++) {
+				if (!lifecycle.promote(launchConfigId)) {
+					lifecycle.launchOnDemand(config.instanceType, config.ami, launchConfigId, autoScale);
+				}
+			}
+			return;
+		}
+		// Simulate Adding
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = config.current; i < config.current + increment; i++) {
+					try {
+						handler.addHost(AutoScaleConfig.getURI(config.server_pool.get(i)), null, config.ami,
+								config.instanceType, null);
+						logger.info("Added host " + config.server_pool.get(i));
+					} catch (URISyntaxException e) {
+						e.printStackTrace();
+					}
+				}
+				config.current += increment;
+				config.warmupUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.warmup);
+				config.scalingOperation.set(false);
+			}
+		}, LOCAL_LAUNCH_DELAY, TimeUnit.SECONDS);
+	}
+
+	private void scaleIn(final int launchConfigId, final LaunchConfig config, int decrement) {
+		if (decrement <= 0) {
+			return;
+		}
+		boolean launches = autoScale.launchesInstances(config);
+		List<Victim> victims = pickVictims(config, decrement, launches);
+		if (victims.isEmpty()) {
+			return;
+		}
+		config.scalingOperation.set(true);
+		config.desired -= victims.size();
+		logger.info("Scale In " + config.instanceType + " Desired " + config.desired + " " + victims.size());
+		for (final Victim victim : victims) {
+			Runnable onDrained;
+			if (launches) {
+				onDrained = new Runnable() {
+					@Override
+					public void run() {
+						lifecycle.terminateInstance(Collections.singletonList(victim.poolEntry), launchConfigId,
+								autoScale);
+					}
+				};
+			} else {
+				// Simulate Deleting
+				onDrained = new Runnable() {
+					@Override
+					public void run() {
+						scheduler.schedule(new Runnable() {
+							@Override
+							public void run() {
+								localRemoved(config, victim.poolEntry);
+							}
+						}, LOCAL_TERMINATE_DELAY, TimeUnit.SECONDS);
+					}
+				};
+			}
+			final Host host = handler.drainHost(victim.host.getUri(), victim.host.getInstanceId(), onDrained);
+			if (host == null) {
+				onDrained.run();
+				continue;
+			}
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (host.getInFlight() > 0) {
+						logger.warn("Drain of " + host.getUri() + " timed out");
+					}
+					host.close();
+				}
+			}, autoScale.drainTimeout, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Keeps the hosts in service at the front of the server pool so scale out
+	 * can keep adding from index current
+	 */
+	private void localRemoved(LaunchConfig config, String poolEntry) {
+		synchronized (config.server_pool) {
+			config.server_pool.remove(poolEntry);
+			config.current--;
+			config.server_pool.add(config.current, poolEntry);
+		}
+		logger.info("Removed host " + poolEntry);
+		if (config.current <= config.desired) {
+			config.scalingOperation.set(false);
+		}
+	}
+
+	private static class Victim {
+		final Host host;
+		final String poolEntry;
+
+		Victim(Host host, String poolEntry) {
+			this.host = host;
+			this.poolEntry = poolEntry;
+		}
+	}
+
+	/**
+	 * @return up to count hosts of the launch config with the least work in
+	 *         flight
+	 */
+	private List<Victim> pickVictims(LaunchConfig config, int count, boolean launches) {
+		Map<String, String> entries = new HashMap<String, String>();
+		synchronized (config.server_pool) {
+			int inService = launches ? config.server_pool.size() : Math.min(config.current, config.server_pool.size());
+			for (int i = 0; i < inService; i++) {
+				String entry = config.server_pool.get(i);
+				if (launches) {
+					entries.put(entry, entry);
+				} else {
+					try {
+						entries.put(AutoScaleConfig.getURI(entry).toString(), entry);
+					} catch (URISyntaxException e) {
+						logger.warn("Bad server pool entry " + entry);
+					}
+				}
+			}
+		}
+		List<Victim> candidates = new ArrayList<Victim>();
+		for (Host host : handler.getHosts()) {
+			String key = launches ? host.getInstanceId() : host.getUri().toString();
+			String entry = key == null ? null : entries.get(key);
+			if (entry != null && !host.isDraining()) {
+				candidates.add(new Victim(host, entry));
+			}
+		}
+		Collections.sort(candidates, new Comparator<Victim>() {
+			@Override
+			public int compare(Victim a, Victim b) {
+				int order = Long.compare(a.host.getInFlight(), b.host.getInFlight());
+				return order != 0 ? order : Long.compare(a.host.getOutstandingWork(), b.host.getOutstandingWork());
+			}
+		});
+		return candidates.subList(0, Math.min(count, candidates.size()));
+	}
+}
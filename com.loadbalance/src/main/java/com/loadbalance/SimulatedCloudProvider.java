@@ -0,0 +1,165 @@
+package com.loadbalance;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.server.LaneExecutor;
+import com.server.TelemetryPublisher;
+import com.server.WebServer;
+import com.server.WorkerStats;
+
+import io.undertow.Undertow;
+
+/**
+ * Runs workers as com.server web servers inside the load balancer JVM, each on
+ * its own ephemeral port of the loopback interface. Launches take the
+ * configured boot latency and an instance type runs as many jobs at once as
+ * it has cores, so scaling policies and selectors can be tried against the
+ * traces on a single machine.
+ */
+public class SimulatedCloudProvider implements CloudProvider {
+
+	private static final String LOCALHOST = "127.0.0.1";
+	private static final int IO_THREADS = 2;
+	private static final long TERMINATE_DELAY = 2;
+	private static final long TELEMETRY_INTERVAL = 1000;
+
+	private class Instance {
+		final String instanceType;
+		volatile int state = STATE_PENDING;
+		volatile String address;
+		Undertow server;
+		LaneExecutor lanes;
+		TelemetryPublisher publisher;
+
+		Instance(String instanceType) {
+			this.instanceType = instanceType;
+		}
+	}
+
+	private final long bootLatency;
+	private final Map<String, Integer> cores;
+	private final URL telemetryUrl;
+	private final Map<String, Instance> instances = new ConcurrentHashMap<String, Instance>();
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final ScheduledExecutorService scheduler;
+	private Logger logger;
+
+	/**
+	 * @param bootLatency
+	 *            seconds from launch until the instance serves requests
+	 * @param cores
+	 *            jobs an instance type runs at once, unlimited for types not
+	 *            listed
+	 * @param telemetryUrl
+	 *            where the instances push telemetry, null for none
+	 */
+	public SimulatedCloudProvider(long bootLatency, Map<String, Integer> cores, URL telemetryUrl) {
+		logger = LoggerFactory.getLogger(SimulatedCloudProvider.class);
+		this.bootLatency = bootLatency;
+		this.cores = cores;
+		this.telemetryUrl = telemetryUrl;
+		scheduler = Executors.newScheduledThreadPool(2);
+	}
+
+	@Override
+	public String launchInstance(String instanceType, String amiID) {
+		final String instanceId = "sim-" + nextId.incrementAndGet();
+		final Instance instance = new Instance(instanceType);
+		instances.put(instanceId, instance);
+		logger.info("Starting simulated " + instanceType + ": " + instanceId);
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					instance.address = "http://" + LOCALHOST + ":" + start(instance);
+				} catch (Exception e) {
+					logger.error("Simulated instance " + instanceId + " failed to start", e);
+					instance.state = STATE_TERMINATED;
+					return;
+				}
+				instance.state = STATE_RUNNING;
+				logger.info("Instance Running " + instanceId + " at " + instance.address);
+			}
+		}, bootLatency, TimeUnit.SECONDS);
+		return instanceId;
+	}
+
+	private int start(Instance instance) throws IOException {
+		Integer limit = cores == null ? null : cores.get(instance.instanceType);
+		WorkerStats stats = new WorkerStats();
+		int port = freePort();
+		int cpuThreads = limit == null ? IO_THREADS : limit;
+		instance.lanes = new LaneExecutor(new int[] { 1, cpuThreads, 1 }, LaneExecutor.DEFAULT_MAX_QUEUED);
+		instance.server = WebServer.start(LOCALHOST, port, IO_THREADS, stats, instance.lanes,
+				limit == null ? 0 : limit);
+		if (telemetryUrl != null) {
+			instance.publisher = new TelemetryPublisher(telemetryUrl, LOCALHOST, port, TELEMETRY_INTERVAL, stats);
+			instance.publisher.start();
+		}
+		return port;
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Override
+	public void terminateInstances(List<String> instanceIds) {
+		for (final String instanceId : instanceIds) {
+			final Instance instance = instances.get(instanceId);
+			if (instance == null) {
+				logger.warn("Unknown simulated instance " + instanceId);
+				continue;
+			}
+			instance.state = STATE_SHUTTING_DOWN;
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (instance.publisher != null) {
+						instance.publisher.stop();
+					}
+					if (instance.server != null) {
+						instance.server.stop();
+						instance.lanes.shutdown();
+					}
+					instance.state = STATE_TERMINATED;
+					logger.info("Instance Terminated " + instanceId);
+				}
+			}, TERMINATE_DELAY, TimeUnit.SECONDS);
+		}
+	}
+
+	@Override
+	public Map<String, InstanceStatus> describeInstances(Collection<String> instanceIds) {
+		Map<String, InstanceStatus> statuses = new HashMap<String, InstanceStatus>();
+		for (String instanceId : instanceIds) {
+			Instance instance = instances.get(instanceId);
+			if (instance != null) {
+				statuses.put(instanceId, new InstanceStatus(instance.state, instance.address));
+				if (instance.state == STATE_TERMINATED) {
+					instances.remove(instanceId);
+				}
+			}
+		}
+		return statuses;
+	}
+}
@@ -0,0 +1,39 @@
+package com.loadbalance;
+
+import java.util.Map;
+
+/**
+ * Load snapshot pushed by a worker, see com.server.TelemetryPublisher.
+ * Values a worker could not measure are null.
+ */
+public class TelemetryFrame {
+	public String host;
+	public int port;
+	/**
+	 * Process cpu in percent
+	 */
+	public Double cpu;
+	public Double load;
+	/**
+	 * Heap used in bytes
+	 */
+	public long heap;
+	/**
+	 * Jobs waiting for a worker thread
+	 */
+	public long queue;
+	public Map<String, Integer> inFlight;
+	/**
+	 * Memorykiller lookups served from the worker's in process image cache
+	 */
+	public Double imageHitRate;
+	/**
+	 * Lookups that missed the image cache and hit memcached
+	 */
+	public Double memcacheHitRate;
+
+	/**
+	 * System.nanoTime() when the frame was received
+	 */
+	transient long receivedAt;
+}
@@ -0,0 +1,59 @@
+package com.loadbalance;
+
+import java.net.URI;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.loadbalance.LoadBalancerHandler.Host;
+
+import io.undertow.io.Receiver;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+
+/**
+ * Receives telemetry frames pushed by the workers and stores the latest one
+ * on the matching Host, where selectors and autoscaling read it without any
+ * I/O on the request path.
+ */
+public class TelemetryHandler implements HttpHandler {
+
+	private final LoadBalancerHandler loadBalancer;
+	private final Gson gson = new Gson();
+
+	public TelemetryHandler(LoadBalancerHandler loadBalancer) {
+		this.loadBalancer = loadBalancer;
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		exchange.getRequestReceiver().receiveFullString(new Receiver.FullStringCallback() {
+			@Override
+			public void handle(HttpServerExchange exchange, String message) {
+				TelemetryFrame frame;
+				try {
+					frame = gson.fromJson(message, TelemetryFrame.class);
+				} catch (JsonSyntaxException e) {
+					exchange.setStatusCode(400);
+					exchange.endExchange();
+					return;
+				}
+				if (frame == null || frame.host == null) {
+					exchange.setStatusCode(400);
+					exchange.endExchange();
+					return;
+				}
+				Host host = loadBalancer.getRegistry().snapshot()
+						.getByUri(URI.create("http://" + frame.host + ":" + frame.port));
+				if (host == null) {
+					exchange.setStatusCode(404);
+					exchange.endExchange();
+					return;
+				}
+				frame.receivedAt = System.nanoTime();
+				host.telemetry = frame;
+				exchange.setStatusCode(204);
+				exchange.endExchange();
+			}
+		});
+	}
+}
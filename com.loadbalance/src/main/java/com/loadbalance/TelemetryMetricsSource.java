@@ -0,0 +1,62 @@
+package com.loadbalance;
+
+import java.util.concurrent.TimeUnit;
+
+import com.loadbalance.AutoScaleConfig.LaunchConfig;
+import com.loadbalance.LoadBalancerHandler.Host;
+
+/**
+ * Answers policies from the telemetry the workers push, without any network
+ * round trip. Stands in for CloudWatch when running locally or in tests.
+ * Frames older than two policy periods are ignored.
+ */
+public class TelemetryMetricsSource implements MetricsSource {
+
+	private static final String METRIC_CPU = "CPUUtilization";
+	private static final String METRIC_LOAD = "Load";
+	private static final String METRIC_QUEUE = "Queue";
+
+	LoadBalancerHandler handler;
+
+	public TelemetryMetricsSource(LoadBalancerHandler handler) {
+		this.handler = handler;
+	}
+
+	@Override
+	public double average(LaunchConfig config, String metric, String statistic, int periodSeconds) {
+		long oldest = System.nanoTime() - TimeUnit.SECONDS.toNanos(periodSeconds * 2L);
+		double total = 0;
+		int found = 0;
+		for (Host host : handler.getHosts()) {
+			if (!config.instanceType.equals(host.getType()) || host.isDraining()) {
+				continue;
+			}
+			TelemetryFrame frame = host.getTelemetry();
+			if (frame == null || frame.receivedAt - oldest < 0) {
+				continue;
+			}
+			Double value = value(frame, metric);
+			if (value != null) {
+				total += value;
+				found++;
+			}
+		}
+		if (found == 0) {
+			LoadBalancer.logger.info("No telemetry for " + config.instanceType);
+			return Double.NaN;
+		}
+		return total / found;
+	}
+
+	private static Double value(TelemetryFrame frame, String metric) {
+		if (METRIC_CPU.equals(metric)) {
+			return frame.cpu;
+		} else if (METRIC_LOAD.equals(metric)) {
+			return frame.load;
+		} else if (METRIC_QUEUE.equals(metric)) {
+			return (double) frame.queue;
+		}
+		return null;
+	}
+
+}
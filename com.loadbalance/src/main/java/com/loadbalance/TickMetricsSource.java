@@ -0,0 +1,33 @@
+package com.loadbalance;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.loadbalance.AutoScaleConfig.LaunchConfig;
+
+/**
+ * Remembers what a source answered for the duration of one scaling tick, so
+ * the policies of a launch config that look at the same metric, statistic
+ * and period share one fetch. Not thread safe, a tick runs on one thread.
+ */
+class TickMetricsSource implements MetricsSource {
+
+	private final MetricsSource source;
+	private final Map<String, Double> values = new HashMap<String, Double>();
+
+	TickMetricsSource(MetricsSource source) {
+		this.source = source;
+	}
+
+	@Override
+	public double average(LaunchConfig config, String metric, String statistic, int periodSeconds) {
+		String key = config.instanceType + '/' + metric + '/' + statistic + '/' + periodSeconds;
+		Double value = values.get(key);
+		if (value == null) {
+			value = source.average(config, metric, statistic, periodSeconds);
+			values.put(key, value);
+		}
+		return value;
+	}
+
+}
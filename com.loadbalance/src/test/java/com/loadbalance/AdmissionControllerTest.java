@@ -0,0 +1,152 @@
+package com.loadbalance;
+
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import io.undertow.Undertow;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import junit.framework.TestCase;
+
+public class AdmissionControllerTest extends TestCase {
+
+	private final CountDownLatch release = new CountDownLatch(1);
+	/**
+	 * Milliseconds a request spends in the backend once released
+	 */
+	private volatile long serviceMillis;
+	private final ExecutorService clients = Executors.newCachedThreadPool();
+	private Undertow server;
+	private int port;
+	private AdmissionController.Lane lane;
+
+	/**
+	 * Stands in for the proxy, holds every request until released
+	 */
+	private final HttpHandler backend = new HttpHandler() {
+		@Override
+		public void handleRequest(HttpServerExchange exchange) throws Exception {
+			if (exchange.isInIoThread()) {
+				exchange.dispatch(this);
+				return;
+			}
+			release.await();
+			Thread.sleep(serviceMillis);
+			exchange.getResponseSender().send("ok");
+		}
+	};
+
+	private void start(int concurrency, int queue, long budget) throws Exception {
+		LoadBalancerHandler loadBalancer = new LoadBalancerHandler();
+		loadBalancer.addHost(new URI("http://10.0.0.1:8000"));
+		AutoScaleConfig.AdmissionLimit limit = new AutoScaleConfig.AdmissionLimit();
+		limit.concurrency = concurrency;
+		limit.queue = queue;
+		limit.budget = budget;
+		AdmissionController controller = new AdmissionController(loadBalancer, backend,
+				Collections.singletonMap("countprimes", limit));
+		lane = controller.getLane(RequestType.COMPUTE_PRIME);
+		ServerSocket socket = new ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+		server = Undertow.builder().addHttpListener(port, "localhost").setIoThreads(2).setHandler(controller).build();
+		server.start();
+	}
+
+	@Override
+	protected void tearDown() {
+		release.countDown();
+		clients.shutdownNow();
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	private static final class Response {
+		final int status;
+		final String retryAfter;
+
+		Response(int status, String retryAfter) {
+			this.status = status;
+			this.retryAfter = retryAfter;
+		}
+	}
+
+	private Future<Response> send() {
+		return clients.submit(new Callable<Response>() {
+			@Override
+			public Response call() throws Exception {
+				HttpURLConnection connection = (HttpURLConnection) new URL(
+						"http://localhost:" + port + "/?type=countprimes&arg=7").openConnection();
+				return new Response(connection.getResponseCode(), connection.getHeaderField("Retry-After"));
+			}
+		});
+	}
+
+	private void await(int running, int queued) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while ((lane.getRunning() != running || lane.getQueued() != queued) && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(running, lane.getRunning());
+		assertEquals(queued, lane.getQueued());
+	}
+
+	public void testFullQueueIsRejected() throws Exception {
+		start(1, 1, 10000);
+		Future<Response> running = send();
+		await(1, 0);
+		Future<Response> queued = send();
+		await(1, 1);
+		Response rejected = send().get(5, TimeUnit.SECONDS);
+		assertEquals(503, rejected.status);
+		assertNotNull(rejected.retryAfter);
+		assertEquals(1, lane.rejected.sum());
+
+		release.countDown();
+		assertEquals(200, running.get(5, TimeUnit.SECONDS).status);
+		assertEquals(200, queued.get(5, TimeUnit.SECONDS).status);
+		assertEquals(2, lane.admitted.sum());
+	}
+
+	public void testWaitOverBudgetIsRejected() throws Exception {
+		start(1, 10, 200);
+		release.countDown();
+		// Teach the lane that a request takes longer than the budget
+		serviceMillis = 300;
+		assertEquals(200, send().get(5, TimeUnit.SECONDS).status);
+
+		Future<Response> running = send();
+		await(1, 0);
+		Response rejected = send().get(5, TimeUnit.SECONDS);
+		assertEquals(503, rejected.status);
+		assertEquals("1", rejected.retryAfter);
+		assertEquals(0, lane.getQueued());
+		assertEquals(200, running.get(5, TimeUnit.SECONDS).status);
+	}
+
+	public void testQueuedRequestExpiresWithoutOtherTraffic() throws Exception {
+		start(1, 10, 200);
+		Future<Response> running = send();
+		await(1, 0);
+		long start = System.nanoTime();
+		Response expired = send().get(5, TimeUnit.SECONDS);
+		long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertEquals(503, expired.status);
+		assertTrue("expired after " + waited + "ms", waited >= 200 && waited < 2000);
+		assertEquals(1, lane.expired.sum());
+		assertEquals(0, lane.getQueued());
+
+		release.countDown();
+		assertEquals(200, running.get(5, TimeUnit.SECONDS).status);
+	}
+}
@@ -0,0 +1,104 @@
+package com.loadbalance;
+
+import java.net.URI;
+import java.util.Arrays;
+
+import com.loadbalance.LoadBalancerHandler.Host;
+
+import junit.framework.TestCase;
+
+public class AffinityHostSelectorTest extends TestCase {
+
+	private static final int KEYS = 1000;
+	private static final String TYPE = "memorykiller";
+
+	private final AffinityHostSelector selector = new AffinityHostSelector(1.25);
+
+	private static Host[] hosts(int count) throws Exception {
+		LoadBalancerHandler loadBalancer = new LoadBalancerHandler();
+		for (int i = 0; i < count; i++) {
+			loadBalancer.addHost(new URI("http://10.0.0." + (i + 1) + ":8000"));
+		}
+		return loadBalancer.getHosts();
+	}
+
+	private URI select(Host[] hosts, int key) {
+		return hosts[selector.selectHost(hosts, TYPE, "image" + key + ".jpg")].uri;
+	}
+
+	public void testSameArgumentGoesToSameHost() throws Exception {
+		Host[] hosts = hosts(5);
+		for (int key = 0; key < 100; key++) {
+			assertEquals(select(hosts, key), select(hosts, key));
+		}
+	}
+
+	public void testArgumentsSpreadOverHosts() throws Exception {
+		Host[] hosts = hosts(5);
+		int[] counts = new int[hosts.length];
+		for (int key = 0; key < KEYS; key++) {
+			counts[selector.selectHost(hosts, TYPE, "image" + key + ".jpg")]++;
+		}
+		for (int count : counts) {
+			assertTrue(Arrays.toString(counts), count > KEYS / hosts.length / 2);
+		}
+	}
+
+	public void testAddedHostOnlyTakesItsShare() throws Exception {
+		Host[] six = hosts(6);
+		Host[] five = Arrays.copyOf(six, 5);
+		URI added = six[5].uri;
+		int moved = 0;
+		for (int key = 0; key < KEYS; key++) {
+			URI before = select(five, key);
+			URI after = select(six, key);
+			if (!before.equals(after)) {
+				assertEquals("key " + key + " moved between old hosts", added, after);
+				moved++;
+			}
+		}
+		// One in six keys is expected to move
+		assertTrue("moved " + moved, moved > KEYS / 10 && moved < KEYS / 4);
+	}
+
+	public void testRemovedHostOnlyGivesUpItsKeys() throws Exception {
+		Host[] six = hosts(6);
+		URI removed = six[2].uri;
+		Host[] five = new Host[5];
+		for (int i = 0, j = 0; i < six.length; i++) {
+			if (i != 2) {
+				five[j++] = six[i];
+			}
+		}
+		int moved = 0;
+		for (int key = 0; key < KEYS; key++) {
+			URI before = select(six, key);
+			URI after = select(five, key);
+			if (before.equals(removed)) {
+				moved++;
+			} else {
+				assertEquals("key " + key + " moved off a remaining host", before, after);
+			}
+		}
+		assertTrue("moved " + moved, moved > KEYS / 10 && moved < KEYS / 4);
+	}
+
+	public void testHotKeySpillsOverToNextHost() throws Exception {
+		Host[] hosts = hosts(5);
+		int preferred = selector.selectHost(hosts, TYPE, "hot.jpg");
+		hosts[preferred].inFlight.add(10);
+		int spilled = selector.selectHost(hosts, TYPE, "hot.jpg");
+		assertTrue(spilled != preferred);
+		// Once the preferred host catches up the key returns to it
+		hosts[preferred].inFlight.add(-10);
+		assertEquals(preferred, selector.selectHost(hosts, TYPE, "hot.jpg"));
+	}
+
+	public void testRequestsWithoutArgumentStillGetAHost() throws Exception {
+		Host[] hosts = hosts(3);
+		for (int i = 0; i < 20; i++) {
+			int selected = selector.selectHost(hosts, TYPE, null);
+			assertTrue(selected >= 0 && selected < hosts.length);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.loadbalance;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+	public void testSmallValuesHaveTheirOwnBucket() {
+		for (int micros = 0; micros < 8; micros++) {
+			assertEquals(micros, LatencyHistogram.bucketFor(micros));
+			assertEquals(micros, LatencyHistogram.upperBound(micros));
+		}
+		assertEquals(0, LatencyHistogram.bucketFor(-5));
+	}
+
+	public void testBucketsAreContiguous() {
+		for (int bucket = 1; bucket < LatencyHistogram.BUCKETS; bucket++) {
+			long lower = LatencyHistogram.upperBound(bucket - 1) + 1;
+			long upper = LatencyHistogram.upperBound(bucket);
+			assertTrue("bucket " + bucket + " is empty", lower <= upper);
+			assertEquals("lower bound of bucket " + bucket, bucket, LatencyHistogram.bucketFor(lower));
+			assertEquals("upper bound of bucket " + bucket, bucket, LatencyHistogram.bucketFor(upper));
+		}
+	}
+
+	public void testUpperBoundIsWithinAnEighth() {
+		for (long micros = 8; micros < (1L << 32); micros = micros * 5 / 4 + 1) {
+			long upper = LatencyHistogram.upperBound(LatencyHistogram.bucketFor(micros));
+			assertTrue(micros + " above its bound " + upper, micros <= upper);
+			assertTrue(micros + " too far below its bound " + upper, upper - micros <= micros / 8);
+		}
+	}
+
+	public void testLongLatenciesAreClamped() {
+		assertEquals((1L << 32) - 1, LatencyHistogram.upperBound(LatencyHistogram.BUCKETS - 1));
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketFor(1L << 32));
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketFor(1L << 40));
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketFor(Long.MAX_VALUE));
+	}
+
+	public void testQuantile() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.quantile(0.5));
+		for (int millis = 1; millis <= 100; millis++) {
+			histogram.record(millis * 1000000L);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(5050000, histogram.getSum());
+		long median = histogram.quantile(0.5);
+		assertTrue("median " + median, median >= 50000 && median <= 50000 * 9 / 8);
+		long p99 = histogram.quantile(0.99);
+		assertTrue("p99 " + p99, p99 >= 99000 && p99 <= 99000 * 9 / 8);
+	}
+
+	public void testMergeAddsCounts() {
+		LatencyHistogram a = new LatencyHistogram();
+		LatencyHistogram b = new LatencyHistogram();
+		a.record(3000);
+		b.record(3000);
+		b.record(1000000);
+		a.merge(b);
+		assertEquals(3, a.getCount());
+		assertEquals(2, a.getBucketCount(LatencyHistogram.bucketFor(3)));
+		assertEquals(1, a.getBucketCount(LatencyHistogram.bucketFor(1000)));
+	}
+}
@@ -0,0 +1,47 @@
+package com.loadbalance;
+
+import junit.framework.TestCase;
+
+public class PredictiveScalerTest extends TestCase {
+
+	/**
+	 * Seconds between samples, as the scaling controller takes them
+	 */
+	private static final int STEP = 10;
+
+	private final PredictiveScaler scaler = new PredictiveScaler(null, null);
+
+	public void testLinearRampIsExtrapolated() {
+		// 20 requests per second, growing by 0.1 every second
+		double rate = 0;
+		for (int t = 0; t < 1000; t += STEP) {
+			rate = 20 + 0.1 * t;
+			scaler.observe(RequestType.COMPUTE_PRIME, rate, STEP);
+		}
+		assertEquals(rate + 0.1 * 120, scaler.forecast(RequestType.COMPUTE_PRIME, 120), 0.5);
+		assertEquals(rate, scaler.forecast(RequestType.COMPUTE_PRIME, 0), 0.5);
+	}
+
+	public void testTrendDoesNotDependOnSampleInterval() {
+		PredictiveScaler coarse = new PredictiveScaler(null, null);
+		for (int t = 0; t < 2000; t += STEP) {
+			scaler.observe(RequestType.WISDOM_418, 5 + 0.2 * t, STEP);
+		}
+		for (int t = 0; t < 2000; t += 2 * STEP) {
+			coarse.observe(RequestType.WISDOM_418, 5 + 0.2 * t, 2 * STEP);
+		}
+		// Both last saw the rate at a different time, compare the slopes
+		double fine = scaler.forecast(RequestType.WISDOM_418, 120) - scaler.forecast(RequestType.WISDOM_418, 0);
+		double slow = coarse.forecast(RequestType.WISDOM_418, 120) - coarse.forecast(RequestType.WISDOM_418, 0);
+		assertEquals(24, fine, 0.5);
+		assertEquals(24, slow, 0.5);
+	}
+
+	public void testFallingRateIsNeverForecastNegative() {
+		for (int t = 0; t < 1000; t += STEP) {
+			scaler.observe(RequestType.TELL_ME_NOW, Math.max(0, 50 - 0.1 * t), STEP);
+		}
+		assertEquals(0, scaler.forecast(RequestType.TELL_ME_NOW, 120), 0);
+		assertEquals(0, scaler.forecast(RequestType.MEMORY_KILLER, 120), 0);
+	}
+}
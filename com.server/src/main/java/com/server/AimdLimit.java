@@ -0,0 +1,53 @@
+package com.server;
+
+/**
+ * Adaptive concurrency limit for CPU bound jobs. A job that got less CPU time
+ * than wall clock time competed with other jobs for the cores, so the limit
+ * shrinks multiplicatively. Jobs that ran undisturbed while the limit was
+ * reached grow it by one per limit completions. Not thread safe, the owner
+ * synchronizes.
+ */
+class AimdLimit {
+
+	/**
+	 * CPU time over wall time below which a job counts as contended
+	 */
+	private static final double TARGET_UTILIZATION = 0.8;
+	private static final double BACKOFF = 0.9;
+	/**
+	 * Jobs shorter than this say little about contention
+	 */
+	private static final long MIN_SAMPLE_NANOS = 1000000;
+
+	private final int min;
+	private final int max;
+	private double limit;
+
+	AimdLimit(int initial, int min, int max) {
+		this.min = min;
+		this.max = max;
+		this.limit = initial;
+	}
+
+	int get() {
+		return (int) limit;
+	}
+
+	/**
+	 * @param saturated
+	 *            whether the limit was reached when the job started
+	 * @return whether the limit grew
+	 */
+	boolean onSample(long cpuNanos, long wallNanos, boolean saturated) {
+		if (wallNanos < MIN_SAMPLE_NANOS || cpuNanos < 0) {
+			return false;
+		}
+		int before = get();
+		if (cpuNanos < TARGET_UTILIZATION * wallNanos) {
+			limit = Math.max(min, limit * BACKOFF);
+		} else if (saturated) {
+			limit = Math.min(max, limit + 1 / limit);
+		}
+		return get() > before;
+	}
+}
@@ -12,7 +12,7 @@ import io.undertow.server.HttpServerExchange;
 
 public class CpuHandler implements HttpHandler{
 	
-	public double getProcessCpuLoad() throws Exception {
+	public static double getProcessCpuLoad() throws Exception {
 
 		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
 		ObjectName name = ObjectName.getInstance("java.lang:type=OperatingSystem");
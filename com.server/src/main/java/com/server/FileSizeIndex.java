@@ -0,0 +1,146 @@
+package com.server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sizes of the files in one directory by file name, so memorykiller can
+ * answer without reading the image. The names and sizes sit in an open
+ * addressing table of two arrays that is rebuilt whole whenever the
+ * directory changes and swapped in, lookups never lock.
+ */
+class FileSizeIndex {
+
+	/**
+	 * Immutable linear probing table, at most half full
+	 */
+	private static final class Table {
+		final String[] names;
+		final long[] sizes;
+		final int mask;
+
+		Table(List<String> names, List<Long> sizes) {
+			int capacity = Integer.highestOneBit(Math.max(names.size(), 8) * 2 - 1) << 1;
+			this.names = new String[capacity];
+			this.sizes = new long[capacity];
+			this.mask = capacity - 1;
+			for (int i = 0; i < names.size(); i++) {
+				int slot = slot(names.get(i));
+				while (this.names[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				this.names[slot] = names.get(i);
+				this.sizes[slot] = sizes.get(i);
+			}
+		}
+
+		private int slot(String name) {
+			int h = name.hashCode() * 0x9e3779b9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		long get(String name) {
+			for (int slot = slot(name);; slot = (slot + 1) & mask) {
+				String candidate = names[slot];
+				if (candidate == null) {
+					return -1;
+				}
+				if (candidate.equals(name)) {
+					return sizes[slot];
+				}
+			}
+		}
+	}
+
+	private final Path directory;
+	private volatile Table table;
+	private Logger logger;
+
+	FileSizeIndex(Path directory) {
+		logger = LoggerFactory.getLogger(FileSizeIndex.class);
+		this.directory = directory;
+		this.table = new Table(new ArrayList<String>(), new ArrayList<Long>());
+	}
+
+	/**
+	 * Indexes the directory and keeps the index up to date from a daemon
+	 * thread watching it
+	 */
+	void start() throws IOException {
+		final WatchService watcher = directory.getFileSystem().newWatchService();
+		directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		// Registered before the first scan so no change slips between them
+		refresh();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch(watcher);
+			}
+		}, "file-size-index");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return size in bytes of the file, -1 if it is not indexed
+	 */
+	long size(String name) {
+		return table.get(name);
+	}
+
+	private void watch(WatchService watcher) {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			// One rescan covers all events of the key, including overflow
+			key.pollEvents();
+			try {
+				refresh();
+			} catch (IOException e) {
+				logger.error("Indexing " + directory + " failed", e);
+			}
+			if (!key.reset()) {
+				logger.warn("Stopped watching " + directory);
+				return;
+			}
+		}
+	}
+
+	private void refresh() throws IOException {
+		List<String> names = new ArrayList<String>();
+		List<Long> sizes = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(file, BasicFileAttributes.class);
+				} catch (IOException e) {
+					// Deleted since listed
+					continue;
+				}
+				if (attributes.isRegularFile()) {
+					names.add(file.getFileName().toString());
+					sizes.add(attributes.size());
+				}
+			}
+		}
+		table = new Table(names, sizes);
+		logger.info("Indexed " + names.size() + " files in " + directory);
+	}
+}
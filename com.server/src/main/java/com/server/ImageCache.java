@@ -0,0 +1,266 @@
+package com.server;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps images off the heap, memory mapped or in direct buffers, under a byte
+ * budget so a hit is a map lookup and never copies the image. Eviction is
+ * W-TinyLFU: a new image enters a small LRU window, and an image leaving the
+ * window only displaces images of the main region that a frequency sketch has
+ * seen less often than it. The main region is a segmented LRU, an image hit
+ * while on probation moves to the protected segment.
+ *
+ * Evicted buffers are unmapped or freed once the collector finds them
+ * unreachable, buffers handed out keep working until then.
+ */
+class ImageCache {
+
+	private static final double WINDOW_SHARE = 0.01;
+	/**
+	 * Largest image the jobs use, the window holds at least one of them so a
+	 * new image gets to stay there until it is seen again
+	 */
+	private static final long MAX_IMAGE_BYTES = 32L * 1024 * 1024;
+	private static final double PROTECTED_SHARE = 0.8;
+
+	private static final class Entry {
+		final String key;
+		final ByteBuffer buffer;
+		final long size;
+
+		Entry(String key, ByteBuffer buffer) {
+			this.key = key;
+			this.buffer = buffer;
+			this.size = buffer.capacity();
+		}
+	}
+
+	private final long maxBytes;
+	private final long windowMax;
+	private final long protectedMax;
+	private final Map<String, Entry> index = new HashMap<String, Entry>();
+	/**
+	 * Each segment is kept in LRU order, the eldest entry comes first
+	 */
+	private final LinkedHashMap<String, Entry> window = new LinkedHashMap<String, Entry>();
+	private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>();
+	private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<String, Entry>();
+	private long windowBytes;
+	private long probationBytes;
+	private long protectedBytes;
+	private final FrequencySketch sketch = new FrequencySketch(1024);
+
+	/**
+	 * @param maxBytes
+	 *            bytes of all cached images together
+	 */
+	ImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.windowMax = Math.min(Math.max((long) (maxBytes * WINDOW_SHARE), MAX_IMAGE_BYTES), maxBytes / 2);
+		this.protectedMax = (long) ((maxBytes - windowMax) * PROTECTED_SHARE);
+	}
+
+	/**
+	 * Counts an access to the image
+	 *
+	 * @return a read only view of the cached image, null on a miss
+	 */
+	synchronized ByteBuffer get(String key) {
+		sketch.increment(key);
+		Entry entry = index.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (window.remove(key) != null) {
+			window.put(key, entry);
+		} else if (probation.remove(key) != null) {
+			probationBytes -= entry.size;
+			protectedSegment.put(key, entry);
+			protectedBytes += entry.size;
+			demote();
+		} else {
+			protectedSegment.remove(key);
+			protectedSegment.put(key, entry);
+		}
+		return entry.buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Like get, without counting an access
+	 */
+	synchronized ByteBuffer peek(String key) {
+		Entry entry = index.get(key);
+		return entry == null ? null : entry.buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Adds an image loaded after a miss. If another thread added it first its
+	 * buffer is kept.
+	 *
+	 * @return a read only view of the cached image, or of the given buffer if
+	 *         the image is not admitted
+	 */
+	synchronized ByteBuffer put(String key, ByteBuffer buffer) {
+		Entry entry = index.get(key);
+		if (entry != null) {
+			return entry.buffer.asReadOnlyBuffer();
+		}
+		entry = new Entry(key, buffer);
+		index.put(key, entry);
+		window.put(key, entry);
+		windowBytes += entry.size;
+		while (windowBytes > windowMax && !window.isEmpty()) {
+			Entry candidate = removeEldest(window);
+			windowBytes -= candidate.size;
+			admit(candidate);
+		}
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Moves an entry leaving the window to probation, if it is seen more often
+	 * than every entry it has to evict to fit. Nothing is evicted for a
+	 * candidate that is rejected.
+	 */
+	private void admit(Entry candidate) {
+		long mainMax = maxBytes - windowMax;
+		long excess = probationBytes + protectedBytes + candidate.size - mainMax;
+		if (candidate.size > mainMax || (excess > 0 && !outweighs(candidate, excess))) {
+			index.remove(candidate.key);
+			return;
+		}
+		while (probationBytes + protectedBytes + candidate.size > mainMax) {
+			LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+			Entry victim = removeEldest(segment);
+			if (segment == probation) {
+				probationBytes -= victim.size;
+			} else {
+				protectedBytes -= victim.size;
+			}
+			index.remove(victim.key);
+		}
+		probation.put(candidate.key, candidate);
+		probationBytes += candidate.size;
+	}
+
+	/**
+	 * Walks the entries admit would evict, probation before protected and
+	 * eldest first, until they free the excess bytes
+	 *
+	 * @return true if the candidate is seen more often than each of them
+	 */
+	private boolean outweighs(Entry candidate, long excess) {
+		int frequency = sketch.frequency(candidate.key);
+		for (Entry victim : probation.values()) {
+			if (frequency <= sketch.frequency(victim.key)) {
+				return false;
+			}
+			excess -= victim.size;
+			if (excess <= 0) {
+				return true;
+			}
+		}
+		for (Entry victim : protectedSegment.values()) {
+			if (frequency <= sketch.frequency(victim.key)) {
+				return false;
+			}
+			excess -= victim.size;
+			if (excess <= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Moves the eldest protected entries back to probation while the protected
+	 * segment is over its share
+	 */
+	private void demote() {
+		while (protectedBytes > protectedMax && protectedSegment.size() > 1) {
+			Entry entry = removeEldest(protectedSegment);
+			protectedBytes -= entry.size;
+			probation.put(entry.key, entry);
+			probationBytes += entry.size;
+		}
+	}
+
+	private static Entry removeEldest(LinkedHashMap<String, Entry> segment) {
+		Iterator<Entry> eldest = segment.values().iterator();
+		Entry entry = eldest.next();
+		eldest.remove();
+		return entry;
+	}
+
+	synchronized long getBytes() {
+		return windowBytes + probationBytes + protectedBytes;
+	}
+
+	synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Count-min sketch of 4 bit counters, halved every ten accesses per
+	 * counter so old popularity fades
+	 */
+	static final class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int[] SEEDS = { 0x97cb3127, 0xb9f4b0f3, 0x61b4c8c5, 0xe2e8d33b };
+		private static final int MAX_COUNT = 15;
+
+		private final byte[][] counters;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int width) {
+			int size = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+			counters = new byte[DEPTH][size];
+			mask = size - 1;
+			sampleSize = 10 * size;
+		}
+
+		private int slot(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		void increment(Object key) {
+			int hash = key.hashCode();
+			boolean added = false;
+			for (int row = 0; row < DEPTH; row++) {
+				int slot = slot(hash, row);
+				if (counters[row][slot] < MAX_COUNT) {
+					counters[row][slot]++;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize) {
+				reset();
+			}
+		}
+
+		int frequency(Object key) {
+			int hash = key.hashCode();
+			int frequency = MAX_COUNT;
+			for (int row = 0; row < DEPTH; row++) {
+				frequency = Math.min(frequency, counters[row][slot(hash, row)]);
+			}
+			return frequency;
+		}
+
+		private void reset() {
+			for (byte[] row : counters) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] >>= 1;
+				}
+			}
+			additions /= 2;
+		}
+	}
+}
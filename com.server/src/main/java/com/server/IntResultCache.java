@@ -0,0 +1,101 @@
+package com.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of job results by integer argument, for jobs whose result
+ * depends on nothing else. Keys stay primitive: the table is split into sets
+ * of four slots, an argument can only live in the set its hash picks, and a
+ * full set replaces the first slot not used since the clock hand last passed
+ * it. Also used by the load balancer to answer repeated requests itself.
+ */
+public class IntResultCache {
+
+	private static final int WAYS = 4;
+
+	private final int[] keys;
+	private final String[] values;
+	private final boolean[] referenced;
+	private final int[] hands;
+	private final int setMask;
+	public final LongAdder hits = new LongAdder();
+	public final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param capacity
+	 *            results kept, rounded up to a power of two
+	 */
+	public IntResultCache(int capacity) {
+		int needed = Math.max((capacity + WAYS - 1) / WAYS, 1);
+		int sets = needed == 1 ? 1 : Integer.highestOneBit(needed - 1) << 1;
+		keys = new int[sets * WAYS];
+		values = new String[sets * WAYS];
+		referenced = new boolean[sets * WAYS];
+		hands = new int[sets];
+		setMask = sets - 1;
+	}
+
+	private int set(int key) {
+		int h = key * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & setMask;
+	}
+
+	/**
+	 * @return the result for the argument, null if it is not cached
+	 */
+	public synchronized String get(int key) {
+		int base = set(key) * WAYS;
+		for (int i = base; i < base + WAYS; i++) {
+			if (values[i] != null && keys[i] == key) {
+				referenced[i] = true;
+				hits.increment();
+				return values[i];
+			}
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Like get, without counting a hit or miss
+	 */
+	public synchronized String peek(int key) {
+		int base = set(key) * WAYS;
+		for (int i = base; i < base + WAYS; i++) {
+			if (values[i] != null && keys[i] == key) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+
+	public synchronized void put(int key, String value) {
+		int set = set(key);
+		int base = set * WAYS;
+		for (int i = base; i < base + WAYS; i++) {
+			if (values[i] == null || keys[i] == key) {
+				store(i, key, value);
+				return;
+			}
+		}
+		while (true) {
+			int i = base + hands[set];
+			hands[set] = (hands[set] + 1) % WAYS;
+			if (!referenced[i]) {
+				store(i, key, value);
+				return;
+			}
+			referenced[i] = false;
+		}
+	}
+
+	private void store(int slot, int key, String value) {
+		keys[slot] = key;
+		values[slot] = value;
+		referenced[slot] = false;
+	}
+
+	public int getCapacity() {
+		return keys.length;
+	}
+}
@@ -0,0 +1,251 @@
+package com.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs jobs on separate lanes per job class so a tellmenow never waits behind
+ * a queue of 418wisdom jobs. Each lane has its own threads and queue, lanes
+ * are ordered by priority. A thread with nothing in its own lane steals from
+ * higher priority lanes, and from lower priority lanes as long as another
+ * thread of its lane stays idle to pick up work for it. The cpu lane runs at
+ * most as many jobs as its adaptive limit allows, the rest wait in its queue.
+ */
+public class LaneExecutor {
+
+	public static final int LATENCY = 0;
+	public static final int CPU = 1;
+	public static final int MEMORY = 2;
+	static final String[] LANE_NAMES = { "latency", "cpu", "memory" };
+	public static final int DEFAULT_MAX_QUEUED = 256;
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * One lane, jobs submitted through it go to its queue
+	 */
+	public final class Lane implements Executor {
+		final int index;
+		final int threads;
+		private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+		private final int maxQueued;
+		/**
+		 * Null for lanes limited only by their threads
+		 */
+		private final AimdLimit limit;
+		private int idle;
+		private int running;
+
+		Lane(int index, int threads, int maxQueued, AimdLimit limit) {
+			this.index = index;
+			this.threads = threads;
+			this.maxQueued = maxQueued;
+			this.limit = limit;
+		}
+
+		private boolean hasCapacity() {
+			return limit == null || running < limit.get();
+		}
+
+		/**
+		 * @return whether the queue is at its bound, new jobs should be
+		 *         turned away
+		 */
+		public boolean isFull() {
+			synchronized (LaneExecutor.this) {
+				return queue.size() >= maxQueued;
+			}
+		}
+
+		/**
+		 * @return queued and running jobs relative to the jobs the lane runs
+		 *         at once, above 1 jobs are waiting
+		 */
+		public double getLoad() {
+			synchronized (LaneExecutor.this) {
+				return (double) (queue.size() + running) / getLimit();
+			}
+		}
+
+		/**
+		 * @return jobs the lane runs at once
+		 */
+		public int getLimit() {
+			synchronized (LaneExecutor.this) {
+				return limit == null ? threads : limit.get();
+			}
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			synchronized (LaneExecutor.this) {
+				queue.add(command);
+				LaneExecutor.this.notifyAll();
+			}
+		}
+
+		public int getQueued() {
+			synchronized (LaneExecutor.this) {
+				return queue.size();
+			}
+		}
+
+		public int getRunning() {
+			synchronized (LaneExecutor.this) {
+				return running;
+			}
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+	}
+
+	private final Lane[] lanes;
+	private final Thread[] workers;
+	private Logger logger;
+
+	/**
+	 * @param threads
+	 *            threads of each lane, indexed by LATENCY, CPU and MEMORY
+	 * @param maxQueued
+	 *            jobs a lane queues before it reports itself full
+	 */
+	public LaneExecutor(int[] threads, int maxQueued) {
+		logger = LoggerFactory.getLogger(LaneExecutor.class);
+		lanes = new Lane[LANE_NAMES.length];
+		int total = 0;
+		for (int i = 0; i < lanes.length; i++) {
+			total += threads[i];
+		}
+		for (int i = 0; i < lanes.length; i++) {
+			// Stealing threads can run cpu jobs too, so the limit may grow
+			// past the lane's own threads
+			AimdLimit limit = i == CPU ? new AimdLimit(threads[i], 1, total) : null;
+			lanes[i] = new Lane(i, threads[i], maxQueued, limit);
+		}
+		workers = new Thread[total];
+		int w = 0;
+		for (final Lane lane : lanes) {
+			for (int t = 0; t < lane.threads; t++) {
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						work(lane);
+					}
+				}, "lane-" + LANE_NAMES[lane.index] + "-" + t);
+				thread.setDaemon(true);
+				thread.start();
+				workers[w++] = thread;
+			}
+		}
+	}
+
+	/**
+	 * Stops the threads once they run out of jobs
+	 */
+	public void shutdown() {
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	/**
+	 * Threads per lane from the lane.latency, lane.cpu and lane.memory system
+	 * properties, by default two each for latency and memory and one per core
+	 * for cpu. lane.queue bounds the queue of each lane.
+	 */
+	public static LaneExecutor fromSystemProperties() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		return new LaneExecutor(new int[] { Integer.getInteger("lane.latency", 2), Integer.getInteger("lane.cpu", cores),
+				Integer.getInteger("lane.memory", 2) }, Integer.getInteger("lane.queue", DEFAULT_MAX_QUEUED));
+	}
+
+	/**
+	 * @return the lane jobs of the given type run on
+	 */
+	public Lane laneFor(String type) {
+		if (type == null) {
+			return lanes[LATENCY];
+		}
+		switch (type) {
+		case "countprimes":
+		case "418wisdom":
+			return lanes[CPU];
+		case "memorykiller":
+			return lanes[MEMORY];
+		default:
+			return lanes[LATENCY];
+		}
+	}
+
+	public Lane getLane(int index) {
+		return lanes[index];
+	}
+
+	private void work(Lane lane) {
+		while (true) {
+			Runnable task;
+			Lane from;
+			boolean saturated;
+			synchronized (this) {
+				lane.idle++;
+				while ((from = pick(lane)) == null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						lane.idle--;
+						return;
+					}
+				}
+				task = from.queue.poll();
+				lane.idle--;
+				from.running++;
+				saturated = !from.hasCapacity();
+			}
+			long cpuStart = THREADS.getCurrentThreadCpuTime();
+			long wallStart = System.nanoTime();
+			try {
+				task.run();
+			} catch (Throwable e) {
+				logger.error("Job failed on lane " + LANE_NAMES[from.index], e);
+			} finally {
+				long cpu = THREADS.getCurrentThreadCpuTime() - cpuStart;
+				long wall = System.nanoTime() - wallStart;
+				synchronized (this) {
+					from.running--;
+					if (from.limit != null) {
+						from.limit.onSample(cpu, wall, saturated);
+					}
+					if (!from.queue.isEmpty()) {
+						// A slot opened up or the limit grew
+						notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the lane the thread takes its next job from, null if there is
+	 *         none it may take. Called with the lock held.
+	 */
+	private Lane pick(Lane own) {
+		if (!own.queue.isEmpty() && own.hasCapacity()) {
+			return own;
+		}
+		for (Lane other : lanes) {
+			if (other == own || other.queue.isEmpty() || !other.hasCapacity()) {
+				continue;
+			}
+			if (other.index < own.index || own.idle > 1) {
+				return other;
+			}
+		}
+		return null;
+	}
+}
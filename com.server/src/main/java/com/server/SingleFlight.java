@@ -0,0 +1,64 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs at most one load per key at a time. A thread asking for a key that is
+ * already being loaded waits for that load and gets its result instead of
+ * starting its own.
+ */
+class SingleFlight<V> {
+
+	private final ConcurrentHashMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+	private final LongAdder original;
+	private final LongAdder coalesced;
+
+	/**
+	 * @param original
+	 *            counts loads that ran
+	 * @param coalesced
+	 *            counts loads that waited for another one instead
+	 */
+	SingleFlight(LongAdder original, LongAdder coalesced) {
+		this.original = original;
+		this.coalesced = coalesced;
+	}
+
+	V load(String key, Callable<V> loader) throws IOException {
+		FutureTask<V> task = new FutureTask<V>(loader);
+		FutureTask<V> running = inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			original.increment();
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+			running = task;
+		} else {
+			coalesced.increment();
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + key);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException("Loading " + key + " failed", cause);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.server;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+
+/**
+ * Reports the job queues of this worker as JSON: threads, concurrency limit,
+ * queued and running jobs per lane, jobs in flight by type, and image loads
+ * that ran or were coalesced with another.
+ */
+public class StatsHandler implements HttpHandler {
+
+	private final LaneExecutor lanes;
+	private final WorkerStats stats;
+
+	public StatsHandler(LaneExecutor lanes, WorkerStats stats) {
+		this.lanes = lanes;
+		this.stats = stats;
+	}
+
+	@Override
+	public void handleRequest(HttpServerExchange exchange) throws Exception {
+		StringBuilder out = new StringBuilder(256);
+		out.append("{\"lanes\":{");
+		for (int i = 0; i < LaneExecutor.LANE_NAMES.length; i++) {
+			LaneExecutor.Lane lane = lanes.getLane(i);
+			if (i > 0) {
+				out.append(',');
+			}
+			out.append('"').append(LaneExecutor.LANE_NAMES[i]).append("\":{\"threads\":").append(lane.getThreads())
+					.append(",\"limit\":").append(lane.getLimit()).append(",\"queued\":").append(lane.getQueued())
+					.append(",\"running\":").append(lane.getRunning()).append('}');
+		}
+		out.append("},\"queued\":").append(stats.queued.sum()).append(",\"inFlight\":{");
+		for (int i = 0; i < WorkerStats.JOB_TYPES.length; i++) {
+			if (i > 0) {
+				out.append(',');
+			}
+			out.append('"').append(WorkerStats.JOB_TYPES[i]).append("\":").append(stats.inFlight.get(i));
+		}
+		out.append("},\"imageLoads\":{\"original\":").append(stats.imageLoads.sum()).append(",\"coalesced\":")
+				.append(stats.imageLoadsCoalesced.sum()).append("}}");
+		exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+		exchange.getResponseSender().send(out.toString());
+	}
+}
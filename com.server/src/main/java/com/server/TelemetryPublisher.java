@@ -0,0 +1,102 @@
+package com.server;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically pushes a small JSON frame describing the load on this worker
+ * to the load balancer. Frames are POSTed over a keep-alive connection so the
+ * same socket is reused between frames.
+ */
+public class TelemetryPublisher {
+
+	private final URL target;
+	private final String hostname;
+	private final int port;
+	private final long intervalMillis;
+	private final WorkerStats stats;
+	private final ScheduledExecutorService scheduler;
+	private final StringBuilder frame = new StringBuilder(256);
+	private Logger logger;
+
+	public TelemetryPublisher(URL target, String hostname, int port, long intervalMillis, WorkerStats stats) {
+		logger = LoggerFactory.getLogger(TelemetryPublisher.class);
+		this.target = target;
+		this.hostname = hostname;
+		this.port = port;
+		this.intervalMillis = intervalMillis;
+		this.stats = stats;
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	public void start() {
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					publish();
+				} catch (Exception e) {
+					logger.debug("Telemetry push failed " + e.getMessage());
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		logger.info("Publishing telemetry to " + target + " every " + intervalMillis + "ms");
+	}
+
+	public void stop() {
+		scheduler.shutdownNow();
+	}
+
+	String buildFrame() throws Exception {
+		frame.setLength(0);
+		frame.append("{\"host\":\"").append(hostname).append("\",\"port\":").append(port);
+		frame.append(",\"cpu\":").append(number(CpuHandler.getProcessCpuLoad()));
+		frame.append(",\"load\":").append(number(ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage()));
+		frame.append(",\"heap\":").append(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+		frame.append(",\"queue\":").append(stats.queued.sum());
+		frame.append(",\"inFlight\":{");
+		for (int i = 0; i < WorkerStats.JOB_TYPES.length; i++) {
+			if (i > 0) {
+				frame.append(',');
+			}
+			frame.append('"').append(WorkerStats.JOB_TYPES[i]).append("\":").append(stats.inFlight.get(i));
+		}
+		frame.append("},\"imageHitRate\":").append(number(stats.imageHitRate()));
+		frame.append(",\"memcacheHitRate\":").append(number(stats.memcacheHitRate())).append('}');
+		return frame.toString();
+	}
+
+	private static String number(double value) {
+		return Double.isNaN(value) || Double.isInfinite(value) || value < 0 ? "null" : String.valueOf(value);
+	}
+
+	private void publish() throws Exception {
+		byte[] body = buildFrame().getBytes(StandardCharsets.UTF_8);
+		HttpURLConnection con = (HttpURLConnection) target.openConnection();
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		con.setConnectTimeout((int) intervalMillis);
+		con.setReadTimeout((int) intervalMillis);
+		con.setFixedLengthStreamingMode(body.length);
+		con.setRequestProperty("Content-Type", "application/json");
+		OutputStream out = con.getOutputStream();
+		out.write(body);
+		out.close();
+		// Drain the response so the connection goes back to the keep-alive
+		// cache
+		InputStream in = con.getInputStream();
+		while (in.read() != -1) {
+		}
+		in.close();
+	}
+}
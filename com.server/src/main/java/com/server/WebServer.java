@@ -1,6 +1,7 @@
 package com.server;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
@@ -40,6 +41,32 @@ public class WebServer {
 		}
 	}
 
+	/**
+	 * Starts a worker listening on the given address. Also used by the load
+	 * balancer to run simulated instances in its own JVM.
+	 * 
+	 * @param cores
+	 *            jobs run at once, 0 for no limit
+	 */
+	public static Undertow start(String hostname, int port, int ioThreads, WorkerStats stats, LaneExecutor lanes,
+			int cores) throws IOException {
+		Undertow server = Undertow.builder().addHttpListener(port, hostname).setBufferSize(1024 * 16)
+				.setIoThreads(ioThreads).setSocketOption(Options.BACKLOG, 10000)
+				.setServerOption(UndertowOptions.ALWAYS_SET_KEEP_ALIVE, false)
+				.setServerOption(UndertowOptions.ALWAYS_SET_DATE, true)
+				.setServerOption(UndertowOptions.ENABLE_CONNECTOR_STATISTICS, false)
+				.setServerOption(UndertowOptions.RECORD_REQUEST_START_TIME, false)
+				.setHandler(Handlers.header(
+						Handlers.path().addPrefixPath("/health", new HealthCheckHandler())
+								.addPrefixPath("/work", new WorkerHandler(stats, lanes, cores))
+								.addPrefixPath("/cpu", new CpuHandler())
+								.addPrefixPath("/stats", new StatsHandler(lanes, stats)),
+						Headers.SERVER_STRING, "U-tow"))
+				.build();
+		server.start();
+		return server;
+	}
+
 	public static void main(String[] args) throws Exception {
 		String hostname = getHostname();
 		Logger logger = LoggerFactory.getLogger(WebServer.class);
@@ -47,16 +74,15 @@ public class WebServer {
 		logger.info("Memory " + Runtime.getRuntime().totalMemory());
 		logger.info("Proc " + Runtime.getRuntime().availableProcessors());
 		logger.debug("Test");
-		Undertow.builder().addHttpListener(8080, hostname).setBufferSize(1024 * 16)
-				.setIoThreads(Math.max(Runtime.getRuntime().availableProcessors(), 2))
-				.setSocketOption(Options.BACKLOG, 10000).setServerOption(UndertowOptions.ALWAYS_SET_KEEP_ALIVE, false)
-				.setServerOption(UndertowOptions.ALWAYS_SET_DATE, true)
-				.setServerOption(UndertowOptions.ENABLE_CONNECTOR_STATISTICS, false)
-				.setServerOption(UndertowOptions.RECORD_REQUEST_START_TIME, false)
-				.setHandler(Handlers.header(
-						Handlers.path().addPrefixPath("/health", new HealthCheckHandler())
-								.addPrefixPath("/work", new WorkerHandler()).addPrefixPath("/cpu", new CpuHandler()),
-						Headers.SERVER_STRING, "U-tow"))
-				.build().start();
+		WorkerStats stats = new WorkerStats();
+		start(hostname, 8080, Math.max(Runtime.getRuntime().availableProcessors(), 2), stats,
+				LaneExecutor.fromSystemProperties(), 0);
+
+		// e.g. -Dtelemetry.url=http://loadbalancer:8081/telemetry
+		String telemetryUrl = System.getProperty("telemetry.url");
+		if (telemetryUrl != null) {
+			long interval = Long.getLong("telemetry.interval", 1000);
+			new TelemetryPublisher(new URL(telemetryUrl), hostname, 8080, interval, stats).start();
+		}
 	}
 }
@@ -2,10 +2,13 @@ package com.server;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Random;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,7 +21,45 @@ import net.spy.memcached.transcoders.SerializingTranscoder;
 public class WorkEngine {
 	private final String basePath = "/home/ubuntu/images/wall/";
 	private final String seperator = "\t";
+	private static final int PAGE_SIZE = 4096;
+
+	/**
+	 * memorykiller.mode values. cache loads every image through the image
+	 * cache, index answers from the file size index without reading the
+	 * image, touch answers from the index and still reads every page of the
+	 * cached image.
+	 */
+	static final String MEMORY_CACHE = "cache";
+	static final String MEMORY_INDEX = "index";
+	static final String MEMORY_TOUCH = "touch";
+	/**
+	 * Optional second tier behind images, null unless -Dmemcached gives its
+	 * address
+	 */
 	private MemcachedClient memcache;
+	private final ImageCache images;
+	/**
+	 * Concurrent misses of one image share a single load
+	 */
+	private final SingleFlight<ByteBuffer> loads;
+	/**
+	 * Image sizes by file name, null unless memorykiller answers from the
+	 * index
+	 */
+	private FileSizeIndex sizes;
+	private final boolean touchImages;
+	/**
+	 * Keeps the reads of touch from being optimized away
+	 */
+	volatile int touched;
+	private final WorkerStats stats;
+	/**
+	 * Results of countprimes and 418wisdom by argument, null when the
+	 * capacity of the type is 0
+	 */
+	private final IntResultCache primeCounts;
+	private final IntResultCache wisdoms;
+	static final int DEFAULT_RESULT_CACHE = 4096;
 
 	Logger logger;
 
@@ -43,29 +84,85 @@ public class WorkEngine {
 			"The costs of communication between server nodes is likely not significant in this assignment.",
 			"The best performance may come from a particular mixture of jobs on a worker node." };
 
-	public WorkEngine() throws IOException {
+	/**
+	 * responses[i] + seperator encoded once, mini_compute_inline only appends
+	 * the id
+	 */
+	private final ByteBuffer[] responsePrefixes = new ByteBuffer[responses.length];
+
+	public WorkEngine(WorkerStats stats) throws IOException {
+		this.stats = stats;
 		logger = LoggerFactory.getLogger(WorkEngine.class);
-		SerializingTranscoder transcoder = new SerializingTranscoder(30 * 1024 * 1024);
-		transcoder.setCompressionThreshold(Integer.MAX_VALUE);
-		memcache = new MemcachedClient(
-				new ConnectionFactoryBuilder().setTranscoder(transcoder).setOpTimeout(10000).build(),
-				AddrUtil.getAddresses("127.0.0.1:11211"));
+		// e.g. -Dimage.cache.bytes=1073741824
+		images = new ImageCache(Long.getLong("image.cache.bytes", 512L * 1024 * 1024));
+		loads = new SingleFlight<ByteBuffer>(stats.imageLoads, stats.imageLoadsCoalesced);
+		primeCounts = resultCache("countprimes");
+		wisdoms = resultCache("418wisdom");
+		// e.g. -Dmemorykiller.mode=index
+		String mode = System.getProperty("memorykiller.mode", MEMORY_CACHE);
+		touchImages = MEMORY_TOUCH.equals(mode);
+		if (MEMORY_INDEX.equals(mode) || touchImages) {
+			sizes = new FileSizeIndex(Paths.get(basePath));
+			try {
+				sizes.start();
+			} catch (IOException e) {
+				// Every lookup misses the index and falls back to the cache
+				logger.error("Indexing " + basePath + " failed", e);
+			}
+		} else if (!MEMORY_CACHE.equals(mode)) {
+			throw new IllegalArgumentException("Unknown memorykiller.mode " + mode);
+		}
+		// e.g. -Dmemcached=127.0.0.1:11211
+		String memcached = System.getProperty("memcached");
+		if (memcached != null) {
+			SerializingTranscoder transcoder = new SerializingTranscoder(30 * 1024 * 1024);
+			transcoder.setCompressionThreshold(Integer.MAX_VALUE);
+			memcache = new MemcachedClient(
+					new ConnectionFactoryBuilder().setTranscoder(transcoder).setOpTimeout(10000).build(),
+					AddrUtil.getAddresses(memcached));
+		}
+		for (int i = 0; i < responses.length; i++) {
+			byte[] prefix = (responses[i] + seperator).getBytes(StandardCharsets.UTF_8);
+			responsePrefixes[i] = ByteBuffer.allocateDirect(prefix.length).put(prefix);
+			responsePrefixes[i].flip();
+		}
+
+	}
+
+	/**
+	 * e.g. -Dresult.cache.countprimes=0 disables the cache of the type
+	 */
+	private static IntResultCache resultCache(String type) {
+		int capacity = Integer.getInteger("result.cache." + type, DEFAULT_RESULT_CACHE);
+		return capacity > 0 ? new IntResultCache(capacity) : null;
+	}
 
+	/**
+	 * @return the response of a countprimes or 418wisdom whose result is
+	 *         cached, built without logging like mini_compute_inline, null if
+	 *         the job has to run
+	 */
+	ByteBuffer[] cached_inline(String type, int x, String id) {
+		IntResultCache cache = "countprimes".equals(type) ? primeCounts : "418wisdom".equals(type) ? wisdoms : null;
+		String result = cache == null ? null : cache.get(x);
+		if (result == null) {
+			return null;
+		}
+		return new ByteBuffer[] { ByteBuffer.wrap((result + seperator).getBytes(StandardCharsets.UTF_8)),
+				ByteBuffer.wrap(id.getBytes(StandardCharsets.UTF_8)) };
 	}
 
 	String high_compute_job(int x, String id) {
 		long start = System.nanoTime();
 
-		int iters = 125 * 1000 * 1000;
-		Random rand;
-		int val = 0;
-
-		for (int i = 0; i < iters; i++) {
-			val = new Random(x).nextInt(Integer.MAX_VALUE);
+		String wisdom = wisdoms == null ? null : wisdoms.peek(x);
+		if (wisdom == null) {
+			wisdom = motivation[wisdomIndex(x)];
+			if (wisdoms != null) {
+				wisdoms.put(x, wisdom);
+			}
 		}
-
-		int idx = val % 16;
-		String resp = motivation[idx] + seperator + id;
+		String resp = wisdom + seperator + id;
 		long end = System.nanoTime();
 		StringBuilder builder = new StringBuilder();
 		builder.append("WISDOM418 ");
@@ -80,18 +177,46 @@ public class WorkEngine {
 		return resp;
 	}
 
-	String high_memory_job(String x, String id) throws IOException {
+	private static int wisdomIndex(int x) {
+		int iters = 125 * 1000 * 1000;
+		int val = 0;
+
+		for (int i = 0; i < iters; i++) {
+			val = new Random(x).nextInt(Integer.MAX_VALUE);
+		}
+
+		return val % 16;
+	}
+
+	String high_memory_job(final String x, String id) throws IOException {
 		long start = System.nanoTime();
 		String resp = null;
-		byte[] image = (byte[]) memcache.get(x);
-		if (image == null) {
-			Path path = Paths.get(basePath + x);
-			image = Files.readAllBytes(path);
-			memcache.add(x, 900, image);
+		long size = sizes == null ? -1 : sizes.size(x);
+		if (size < 0 || touchImages) {
+			ByteBuffer image = images.get(x);
+			if (image == null) {
+				stats.imageMisses.increment();
+				image = loads.load(x, new Callable<ByteBuffer>() {
+					@Override
+					public ByteBuffer call() throws IOException {
+						// A load of the image may have finished since the miss
+						ByteBuffer cached = images.peek(x);
+						return cached != null ? cached : images.put(x, loadImage(x));
+					}
+				});
+			} else {
+				stats.imageHits.increment();
+			}
+			if (touchImages) {
+				touch(image);
+			}
+			if (size < 0) {
+				// Not indexed, the response reports the size of the image
+				size = image.capacity();
+			}
 		}
 
-		resp = "Size of File " + x + " :" + image.length + seperator + id;
-		image = null;
+		resp = "Size of File " + x + " :" + size + seperator + id;
 		long end = System.nanoTime();
 		StringBuilder builder = new StringBuilder();
 		builder.append("MEMORYKILLER ");
@@ -106,6 +231,46 @@ public class WorkEngine {
 		return resp;
 	}
 
+	/**
+	 * Reads a byte of every page so the whole image is faulted in, as the job
+	 * did when it copied the image
+	 */
+	private void touch(ByteBuffer image) {
+		int sum = 0;
+		for (int i = 0; i < image.capacity(); i += PAGE_SIZE) {
+			sum += image.get(i);
+		}
+		touched = sum;
+	}
+
+	/**
+	 * Fetches an image missing from images, from memcached if configured and
+	 * otherwise by mapping its file
+	 */
+	private ByteBuffer loadImage(String x) throws IOException {
+		if (memcache != null) {
+			byte[] cached = (byte[]) memcache.get(x);
+			if (cached != null) {
+				stats.memcacheHits.increment();
+				ByteBuffer image = ByteBuffer.allocateDirect(cached.length);
+				image.put(cached);
+				image.flip();
+				return image;
+			}
+			stats.memcacheMisses.increment();
+		}
+		ByteBuffer image;
+		try (FileChannel channel = FileChannel.open(Paths.get(basePath + x), StandardOpenOption.READ)) {
+			image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (memcache != null) {
+			byte[] bytes = new byte[image.capacity()];
+			image.duplicate().get(bytes);
+			memcache.add(x, 900, bytes);
+		}
+		return image;
+	}
+
 	String mini_compute_job(int x, String id) {
 		long start = System.nanoTime();
 
@@ -129,6 +294,17 @@ public class WorkEngine {
 		return resp;
 	}
 
+	/**
+	 * mini_compute_job without timing or logging, cheap enough for an IO
+	 * thread. The response is the same.
+	 */
+	ByteBuffer[] mini_compute_inline(int x, String id) {
+		int result = x * x + 10;
+		int idx = Math.abs(result) % 10;
+		return new ByteBuffer[] { responsePrefixes[idx].duplicate(),
+				ByteBuffer.wrap(id.getBytes(StandardCharsets.UTF_8)) };
+	}
+
 	@SuppressWarnings("unused")
 	String high_bandwidth_job(int x, String id) {
 
@@ -187,6 +363,30 @@ public class WorkEngine {
 	String count_primes_job(int x, String id) {
 		long start = System.nanoTime();
 		String response;
+		String count = primeCounts == null ? null : primeCounts.peek(x);
+		if (count == null) {
+			count = String.valueOf(countPrimes(x));
+			if (primeCounts != null) {
+				primeCounts.put(x, count);
+			}
+		}
+
+		response = count + seperator + id;
+		long end = System.nanoTime();
+		StringBuilder builder = new StringBuilder();
+		builder.append("COUNTPRIME ");
+		builder.append(x);
+		builder.append(" REQID ");
+		builder.append(id);
+		builder.append(" RESPONSE ");
+		builder.append(response);
+		builder.append((end - start) / 1000000);
+		builder.append("ms");
+		logger.info(builder.toString());
+		return response;
+	}
+
+	private static int countPrimes(int x) {
 		int N = x;
 
 		int NUM_ITER = 10;
@@ -219,18 +419,6 @@ public class WorkEngine {
 			}
 		}
 
-		response = String.valueOf(count) + seperator + id;
-		long end = System.nanoTime();
-		StringBuilder builder = new StringBuilder();
-		builder.append("COUNTPRIME ");
-		builder.append(x);
-		builder.append(" REQID ");
-		builder.append(id);
-		builder.append(" RESPONSE ");
-		builder.append(response);
-		builder.append((end - start) / 1000000);
-		builder.append("ms");
-		logger.info(builder.toString());
-		return response;
+		return count;
 	}
 }
@@ -1,11 +1,17 @@
 package com.server;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Deque;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.StatusCodes;
 
 public class WorkerHandler implements HttpHandler {
 
@@ -13,18 +19,62 @@ public class WorkerHandler implements HttpHandler {
 	private final String MEMORY_KILLER = "memorykiller";
 	private final String TELL_ME_NOW = "tellmenow";
 	private final String WISDOM_418 = "418wisdom";
+	private static final int TELL_ME_NOW_INDEX = WorkerStats.jobIndex("tellmenow");
+	/**
+	 * Queued and running jobs of the request's lane over the jobs the lane
+	 * runs at once, sent with every dispatched response
+	 */
+	public static final HttpString WORKER_LOAD = new HttpString("X-Worker-Load");
+	/**
+	 * Microseconds the job ran, without the time it waited for a lane or a
+	 * core, sent with every dispatched response
+	 */
+	public static final HttpString SERVICE_TIME = new HttpString("X-Service-Time");
 
 	WorkEngine engine;
+	WorkerStats stats;
+	LaneExecutor lanes;
+	/**
+	 * Limits jobs running at once to emulate a smaller instance, null when
+	 * the worker has the whole machine
+	 */
+	Semaphore cores;
 
-	public WorkerHandler() throws IOException {
-		engine = new WorkEngine();
+	/**
+	 * @param cores
+	 *            jobs allowed to run at once, 0 for no limit
+	 */
+	public WorkerHandler(WorkerStats stats, LaneExecutor lanes, int cores) throws IOException {
+		this.stats = stats;
+		this.lanes = lanes;
+		engine = new WorkEngine(stats);
+		if (cores > 0) {
+			this.cores = new Semaphore(cores, true);
+		}
 	}
 
 	public void handleRequest(HttpServerExchange exchange) throws Exception {
 		if (exchange.isInIoThread()) {
-			exchange.dispatch(this);
+			Deque<String> type = exchange.getQueryParameters().get("type");
+			String typeName = type == null ? null : type.getLast();
+			if ((TELL_ME_NOW.equals(typeName) || COMPUTE_PRIME.equals(typeName) || WISDOM_418.equals(typeName))
+					&& serveInline(exchange, typeName)) {
+				return;
+			}
+			LaneExecutor.Lane lane = lanes.laneFor(typeName);
+			if (lane.isFull()) {
+				// Back pressure, the load balancer routes around this worker
+				exchange.setStatusCode(StatusCodes.SERVICE_UNAVAILABLE);
+				exchange.getResponseHeaders().put(WORKER_LOAD, String.valueOf(lane.getLoad()));
+				exchange.getResponseHeaders().put(Headers.RETRY_AFTER, 1);
+				exchange.endExchange();
+				return;
+			}
+			stats.queued.increment();
+			exchange.dispatch(lane, this);
 			return;
 		}
+		stats.queued.decrement();
 		Map<String, Deque<String>> params = exchange.getQueryParameters();
 		String type,req_id,argument;
 		String resp;
@@ -39,7 +89,66 @@ public class WorkerHandler implements HttpHandler {
 			return;
 		}
 
-		
+		int job = WorkerStats.jobIndex(type);
+		if (cores != null) {
+			cores.acquire();
+		}
+		stats.jobStarted(job);
+		long started = System.nanoTime();
+		try {
+			resp = runJob(type, argument, req_id);
+		} finally {
+			stats.jobFinished(job);
+			if (cores != null) {
+				cores.release();
+			}
+		}
+
+		long service = System.nanoTime() - started;
+		exchange.getResponseHeaders().put(WORKER_LOAD, String.valueOf(lanes.laneFor(type).getLoad()));
+		exchange.getResponseHeaders().put(SERVICE_TIME, TimeUnit.NANOSECONDS.toMicros(service));
+		exchange.getResponseSender().send(resp);
+	}
+
+	/**
+	 * Answers a tellmenow on the IO thread, it is a multiplication and an
+	 * array lookup so a hand off to a worker thread would cost more than the
+	 * job. So is a countprimes or 418wisdom whose result is cached.
+	 * 
+	 * @return false if the request has to take the dispatched path
+	 */
+	private boolean serveInline(HttpServerExchange exchange, String type) {
+		Map<String, Deque<String>> params = exchange.getQueryParameters();
+		Deque<String> id = params.get("id");
+		Deque<String> arg = params.get("arg");
+		if (id == null || arg == null) {
+			return false;
+		}
+		int x;
+		try {
+			x = Integer.parseInt(arg.getLast());
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (!TELL_ME_NOW.equals(type)) {
+			ByteBuffer[] cached = engine.cached_inline(type, x, id.getLast());
+			if (cached == null) {
+				return false;
+			}
+			exchange.getResponseSender().send(cached);
+			return true;
+		}
+		stats.jobStarted(TELL_ME_NOW_INDEX);
+		try {
+			exchange.getResponseSender().send(engine.mini_compute_inline(x, id.getLast()));
+		} finally {
+			stats.jobFinished(TELL_ME_NOW_INDEX);
+		}
+		return true;
+	}
+
+	private String runJob(String type, String argument, String req_id) throws IOException {
+		String resp;
 		switch (type) {
 		case COMPUTE_PRIME:
 			resp = engine.count_primes_job(Integer.parseInt(argument), req_id);
@@ -57,8 +166,7 @@ public class WorkerHandler implements HttpHandler {
 			resp = "INVALID";
 			break;
 		}
-
-		exchange.getResponseSender().send(resp);
+		return resp;
 	}
 
 }
@@ -0,0 +1,68 @@
+package com.server;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the load on this worker, published to the load
+ * balancer by TelemetryPublisher.
+ */
+public class WorkerStats {
+
+	static final String[] JOB_TYPES = { "countprimes", "memorykiller", "tellmenow", "418wisdom" };
+
+	/**
+	 * Requests dispatched to the worker pool that have not started running
+	 */
+	final LongAdder queued = new LongAdder();
+	final AtomicIntegerArray inFlight = new AtomicIntegerArray(JOB_TYPES.length);
+	final LongAdder imageHits = new LongAdder();
+	final LongAdder imageMisses = new LongAdder();
+	/**
+	 * Image loads that ran, and misses that waited for one of them instead
+	 */
+	final LongAdder imageLoads = new LongAdder();
+	final LongAdder imageLoadsCoalesced = new LongAdder();
+	final LongAdder memcacheHits = new LongAdder();
+	final LongAdder memcacheMisses = new LongAdder();
+
+	static int jobIndex(String type) {
+		for (int i = 0; i < JOB_TYPES.length; i++) {
+			if (JOB_TYPES[i].equals(type)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	void jobStarted(int jobIndex) {
+		if (jobIndex >= 0) {
+			inFlight.incrementAndGet(jobIndex);
+		}
+	}
+
+	void jobFinished(int jobIndex) {
+		if (jobIndex >= 0) {
+			inFlight.decrementAndGet(jobIndex);
+		}
+	}
+
+	/**
+	 * @return fraction of image lookups that hit the in process cache, NaN
+	 *         before the first one
+	 */
+	double imageHitRate() {
+		long hits = imageHits.sum();
+		long total = hits + imageMisses.sum();
+		return total == 0 ? Double.NaN : (double) hits / total;
+	}
+
+	/**
+	 * @return fraction of memcache lookups that hit, NaN before the first one
+	 */
+	double memcacheHitRate() {
+		long hits = memcacheHits.sum();
+		long total = hits + memcacheMisses.sum();
+		return total == 0 ? Double.NaN : (double) hits / total;
+	}
+}
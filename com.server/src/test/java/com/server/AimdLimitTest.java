@@ -0,0 +1,53 @@
+package com.server;
+
+import junit.framework.TestCase;
+
+public class AimdLimitTest extends TestCase {
+
+	private static final long MS = 1000000;
+
+	public void testContendedSampleBacksOff() {
+		AimdLimit limit = new AimdLimit(10, 1, 20);
+		assertFalse(limit.onSample(1 * MS, 10 * MS, false));
+		assertEquals(9, limit.get());
+		limit.onSample(7 * MS, 10 * MS, true);
+		assertEquals(8, limit.get());
+	}
+
+	public void testGrowsOnlyWhenSaturated() {
+		AimdLimit limit = new AimdLimit(4, 1, 20);
+		for (int i = 0; i < 20; i++) {
+			assertFalse(limit.onSample(10 * MS, 10 * MS, false));
+		}
+		assertEquals(4, limit.get());
+		// About one more per limit completions
+		int samples = 0;
+		while (!limit.onSample(10 * MS, 10 * MS, true)) {
+			samples++;
+		}
+		assertEquals(5, limit.get());
+		assertTrue("grew after " + samples, samples >= 3 && samples <= 5);
+	}
+
+	public void testClampedToMinAndMax() {
+		AimdLimit limit = new AimdLimit(4, 2, 6);
+		for (int i = 0; i < 100; i++) {
+			limit.onSample(0, 10 * MS, true);
+		}
+		assertEquals(2, limit.get());
+		for (int i = 0; i < 100; i++) {
+			limit.onSample(10 * MS, 10 * MS, true);
+		}
+		assertEquals(6, limit.get());
+	}
+
+	public void testShortSamplesAreIgnored() {
+		AimdLimit limit = new AimdLimit(4, 1, 20);
+		for (int i = 0; i < 100; i++) {
+			limit.onSample(0, MS / 2, false);
+			limit.onSample(MS / 2, MS / 2, true);
+			limit.onSample(-1, 10 * MS, false);
+		}
+		assertEquals(4, limit.get());
+	}
+}
@@ -0,0 +1,102 @@
+package com.server;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class ImageCacheTest extends TestCase {
+
+	private static final int MB = 1024 * 1024;
+
+	/**
+	 * 128MB leaves a 32MB window and a 96MB main region
+	 */
+	private ImageCache cache;
+
+	@Override
+	protected void setUp() {
+		cache = new ImageCache(128L * MB);
+	}
+
+	/**
+	 * Counts the accesses of a miss and adds the image
+	 */
+	private void load(String key, int megabytes, int accesses) {
+		for (int i = 0; i < accesses; i++) {
+			assertNull(cache.get(key));
+		}
+		cache.put(key, ByteBuffer.allocate(megabytes * MB));
+	}
+
+	private boolean cached(String key) {
+		return cache.peek(key) != null;
+	}
+
+	public void testSketchCountsUpToFifteen() {
+		ImageCache.FrequencySketch sketch = new ImageCache.FrequencySketch(1024);
+		assertEquals(0, sketch.frequency("a"));
+		for (int i = 0; i < 3; i++) {
+			sketch.increment("a");
+		}
+		assertEquals(3, sketch.frequency("a"));
+		for (int i = 0; i < 20; i++) {
+			sketch.increment("a");
+		}
+		assertEquals(15, sketch.frequency("a"));
+	}
+
+	public void testWindowHoldsAnImageOfMaximumSize() {
+		load("m0", 32, 2);
+		load("m1", 32, 2);
+		load("m2", 32, 2);
+		load("m3", 32, 2);
+		assertEquals(128L * MB, cache.getBytes());
+		// The main region is full of images seen more often, the new image
+		// still waits in the window for its second access
+		load("new", 30, 1);
+		assertTrue(cached("new"));
+		assertNotNull(cache.get("new"));
+	}
+
+	public void testRejectedCandidateEvictsNothing() {
+		load("m0", 32, 1);
+		load("m1", 32, 6);
+		load("m2", 32, 1);
+		// Leaving the window the candidate needs m0 and m1 evicted, it is
+		// seen more often than m0 but not than m1
+		load("candidate", 48, 3);
+		assertFalse(cached("candidate"));
+		assertTrue(cached("m0"));
+		assertTrue(cached("m1"));
+		assertTrue(cached("m2"));
+		assertEquals(96L * MB, cache.getBytes());
+	}
+
+	public void testAdmittedCandidateEvictsEldestProbationFirst() {
+		load("m0", 32, 1);
+		load("m1", 32, 1);
+		load("m2", 32, 1);
+		// A hit on probation protects m0
+		assertNotNull(cache.get("m0"));
+		load("candidate", 48, 5);
+		assertTrue(cached("candidate"));
+		assertTrue(cached("m0"));
+		assertFalse(cached("m1"));
+		assertFalse(cached("m2"));
+	}
+
+	public void testImageLargerThanMainRegionIsNotKept() {
+		load("huge", 100, 5);
+		assertFalse(cached("huge"));
+		assertEquals(0, cache.size());
+	}
+
+	public void testPutKeepsBufferAddedFirst() {
+		ByteBuffer first = ByteBuffer.allocate(MB);
+		first.put(0, (byte) 1);
+		cache.put("a", first);
+		ByteBuffer second = cache.put("a", ByteBuffer.allocate(MB));
+		assertEquals(1, second.get(0));
+		assertTrue(second.isReadOnly());
+	}
+}
@@ -0,0 +1,67 @@
+package com.server;
+
+import junit.framework.TestCase;
+
+public class IntResultCacheTest extends TestCase {
+
+	public void testCapacityRoundsUpToWholeSets() {
+		assertEquals(4, new IntResultCache(0).getCapacity());
+		assertEquals(4, new IntResultCache(1).getCapacity());
+		assertEquals(8, new IntResultCache(5).getCapacity());
+		assertEquals(16, new IntResultCache(16).getCapacity());
+		assertEquals(32, new IntResultCache(17).getCapacity());
+		assertEquals(4096, new IntResultCache(4096).getCapacity());
+	}
+
+	public void testGetCountsHitsAndMisses() {
+		IntResultCache cache = new IntResultCache(16);
+		cache.put(7, "seven");
+		assertEquals("seven", cache.get(7));
+		assertNull(cache.get(8));
+		assertEquals("seven", cache.peek(7));
+		assertNull(cache.peek(8));
+		assertEquals(1, cache.hits.sum());
+		assertEquals(1, cache.misses.sum());
+	}
+
+	public void testPutReplacesResultOfSameKey() {
+		IntResultCache cache = new IntResultCache(4);
+		for (int key = 1; key <= 4; key++) {
+			cache.put(key, "old" + key);
+		}
+		cache.put(3, "new3");
+		for (int key = 1; key <= 4; key++) {
+			assertEquals(key == 3 ? "new3" : "old" + key, cache.peek(key));
+		}
+	}
+
+	public void testClockSparesReferencedResults() {
+		// A single set, every key competes for the same four slots
+		IntResultCache cache = new IntResultCache(4);
+		for (int key = 1; key <= 4; key++) {
+			cache.put(key, "r" + key);
+		}
+		cache.get(1);
+		cache.get(3);
+
+		// The hand clears 1 and replaces 2
+		cache.put(5, "r5");
+		assertNull(cache.peek(2));
+		assertNotNull(cache.peek(1));
+		assertNotNull(cache.peek(3));
+		assertNotNull(cache.peek(4));
+
+		// The hand clears 3 and replaces 4
+		cache.put(6, "r6");
+		assertNull(cache.peek(4));
+		assertNotNull(cache.peek(3));
+
+		// 1 was not used since the hand passed it
+		cache.put(7, "r7");
+		assertNull(cache.peek(1));
+		assertEquals("r3", cache.peek(3));
+		assertEquals("r5", cache.peek(5));
+		assertEquals("r6", cache.peek(6));
+		assertEquals("r7", cache.peek(7));
+	}
+}
@@ -0,0 +1,74 @@
+package com.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class LaneExecutorTest extends TestCase {
+
+	private LaneExecutor executor;
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private final Runnable blocked = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	};
+
+	@Override
+	protected void setUp() {
+		executor = new LaneExecutor(new int[] { 2, 1, 1 }, LaneExecutor.DEFAULT_MAX_QUEUED);
+	}
+
+	@Override
+	protected void tearDown() {
+		release.countDown();
+		executor.shutdown();
+	}
+
+	private static void awaitRunning(LaneExecutor.Lane lane, int running) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (lane.getRunning() < running && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(running, lane.getRunning());
+	}
+
+	public void testLatencyLaneKeepsAThreadFree() throws Exception {
+		LaneExecutor.Lane memory = executor.getLane(LaneExecutor.MEMORY);
+		for (int i = 0; i < 4; i++) {
+			memory.execute(blocked);
+		}
+		// The memory thread and one stealing latency thread, the cpu thread
+		// would leave no thread of its lane idle
+		awaitRunning(memory, 2);
+		Thread.sleep(100);
+		assertEquals(2, memory.getRunning());
+		assertEquals(2, memory.getQueued());
+
+		final CountDownLatch ran = new CountDownLatch(1);
+		executor.getLane(LaneExecutor.LATENCY).execute(new Runnable() {
+			@Override
+			public void run() {
+				ran.countDown();
+			}
+		});
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+
+	public void testLowerPriorityLaneStealsFromHigher() throws Exception {
+		LaneExecutor.Lane latency = executor.getLane(LaneExecutor.LATENCY);
+		for (int i = 0; i < 4; i++) {
+			latency.execute(blocked);
+		}
+		// Both latency threads, and the cpu and memory threads stealing
+		awaitRunning(latency, 4);
+		assertEquals(0, latency.getQueued());
+	}
+}
@@ -0,0 +1,108 @@
+package com.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import junit.framework.TestCase;
+
+public class SingleFlightTest extends TestCase {
+
+	private static final int WAITERS = 4;
+
+	private final LongAdder original = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final SingleFlight<String> flight = new SingleFlight<String>(original, coalesced);
+	private final ExecutorService threads = Executors.newCachedThreadPool();
+	private final CountDownLatch started = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final AtomicInteger calls = new AtomicInteger();
+
+	@Override
+	protected void tearDown() {
+		release.countDown();
+		threads.shutdownNow();
+	}
+
+	/**
+	 * A loader that blocks until released, then returns the value or throws
+	 * the failure
+	 */
+	private Callable<String> loader(final String value, final IOException failure) {
+		return new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				started.countDown();
+				release.await();
+				if (failure != null) {
+					throw failure;
+				}
+				return value;
+			}
+		};
+	}
+
+	/**
+	 * Starts one load that blocks in the loader and WAITERS more that join it
+	 */
+	private List<Future<String>> loadConcurrently(final Callable<String> loader) throws Exception {
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		Callable<String> load = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return flight.load("image.jpg", loader);
+			}
+		};
+		results.add(threads.submit(load));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < WAITERS; i++) {
+			results.add(threads.submit(load));
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (coalesced.sum() < WAITERS && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(WAITERS, coalesced.sum());
+		release.countDown();
+		return results;
+	}
+
+	public void testConcurrentLoadsRunLoaderOnce() throws Exception {
+		for (Future<String> result : loadConcurrently(loader("loaded", null))) {
+			assertEquals("loaded", result.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(1, calls.get());
+		assertEquals(1, original.sum());
+	}
+
+	public void testFailureIsRethrownToEveryWaiter() throws Exception {
+		IOException failure = new IOException("no such image");
+		for (Future<String> result : loadConcurrently(loader(null, failure))) {
+			try {
+				result.get(5, TimeUnit.SECONDS);
+				fail("load did not fail");
+			} catch (ExecutionException e) {
+				assertSame(failure, e.getCause());
+			}
+		}
+		assertEquals(1, calls.get());
+	}
+
+	public void testFinishedLoadIsNotReused() throws Exception {
+		release.countDown();
+		assertEquals("first", flight.load("image.jpg", loader("first", null)));
+		assertEquals("second", flight.load("image.jpg", loader("second", null)));
+		assertEquals(2, original.sum());
+		assertEquals(0, coalesced.sum());
+	}
+}